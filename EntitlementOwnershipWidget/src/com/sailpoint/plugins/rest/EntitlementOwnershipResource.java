@@ -1,18 +1,27 @@
 package com.sailpoint.plugins.rest;
 
+import java.io.File;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.function.Predicate;
 
+import javax.ws.rs.BadRequestException;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.GET;
+import javax.ws.rs.NotFoundException;
+import javax.ws.rs.POST;
 import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -28,10 +37,13 @@ import sailpoint.object.Attributes;
 import sailpoint.object.Filter;
 import sailpoint.object.Identity;
 import sailpoint.object.QueryOptions;
+import sailpoint.object.SailPointObject;
 import sailpoint.rest.plugin.BasePluginResource;
 import sailpoint.rest.plugin.Deferred;
 import sailpoint.tools.GeneralException;
 
+import com.sailpoint.plugins.rest.vo.StaleListResult;
+
 /**
  * Widget RESTful class for fetching entitlement ownership details
  */
@@ -45,6 +57,38 @@ public class EntitlementOwnershipResource extends BasePluginResource {
      */
     public static final Log log = LogFactory.getLog(EntitlementOwnershipResource.class);
 
+    /**
+     * On-disk snapshot served when the live query misses its deadline,
+     * written by the plugin service
+     */
+    private static final OwnershipSnapshot snapshot = new OwnershipSnapshot(
+            new File(System.getProperty("java.io.tmpdir"), "EntitlementOwnershipWidget"),
+            Filter.eq("type", "business"));
+
+    static {
+        OwnershipCaches.register(snapshot::requestWrite);
+    }
+
+    /**
+     * Runs the live list query on a worker the request can give up on at the deadline
+     */
+    private static final LiveQueryGuard liveQueryGuard = new LiveQueryGuard("EntitlementOwnershipLiveQuery");
+
+    /**
+     * Order of the rows on a list page, by application name then name
+     */
+    private static final Comparator<Map<String, Object>> ITEM_ORDER = (a, b) -> {
+        String appA = (String) a.get("applicationName");
+        String appB = (String) b.get("applicationName");
+        int appCompare = appA.compareTo(appB);
+        if (appCompare != 0) {
+            return appCompare;
+        }
+        String nameA = (String) a.get("name");
+        String nameB = (String) b.get("name");
+        return nameA.compareTo(nameB);
+    };
+
     /**
      * Query identityiq for entitlement ownership data
      *
@@ -84,12 +128,123 @@ public class EntitlementOwnershipResource extends BasePluginResource {
         // Throws a 401 if not authorized
         authorize(authorizer);
 
+        // Throws a 429 if the caller is over their rate limit or too many queries are running
+        try (RequestThrottle.Permit permit = RequestThrottle.getInstance().acquire(
+                caller.getName(), "list", getThrottleLimits())) {
+            if (getSettingBool(OwnershipSnapshot.SETTING_FALLBACK_ENABLED)) {
+                return listWithSnapshotFallback(caller, permit, query, start, limit);
+            }
+            return listOwnedItems(context, caller.getId(), query, start, limit, getLocale());
+        }
+    }
+
+    /**
+     * Run the live query under the deadline guard and, if it misses the
+     * deadline or fails, serve the page from the ownership snapshot instead.
+     * The snapshot page is built like the live one: a page of roles and a
+     * page of entitlements, each in id order, merged and sorted by
+     * application then name, so paging through either gives the same items.
+     *
+     * @param caller The logged in identity
+     * @param permit The request's throttle permit
+     * @param query Optional search term to filter results
+     * @param start Start index for paging
+     * @param limit Number of items to return
+     * @return A ListResult of the objects, or a StaleListResult from the snapshot
+     * @throws GeneralException if the live query fails and there is no snapshot
+     */
+    private ListResult listWithSnapshotFallback(Identity caller, RequestThrottle.Permit permit, String query,
+            Integer start, Integer limit) throws GeneralException {
+
+        // Anything tied to the request is read here, since the query runs on a worker thread
+        String callerId = caller.getId();
+        Locale locale = getLocale();
+        int deadline = getSettingInt(OwnershipSnapshot.SETTING_DEADLINE_MILLIS);
+        if (deadline <= 0) {
+            deadline = OwnershipSnapshot.DEFAULT_DEADLINE_MILLIS;
+        }
+
+        GeneralException failure = null;
+        try {
+            ListResult live = liveQueryGuard.run(caller.getName(), permit, deadline,
+                    getSettingInt(RequestThrottle.SETTING_MAX_CONCURRENT),
+                    queryContext -> listOwnedItems(queryContext, callerId, query, start, limit, locale));
+            if (live != null) {
+                return live;
+            }
+        } catch (GeneralException e) {
+            log.warn("Live ownership query failed, serving the snapshot", e);
+            failure = e;
+        }
+
+        int first = (start != null) ? start : 0;
+        int max = (limit != null) ? limit : 20;
+        Predicate<OwnershipSnapshot.Row> filter = (query == null || query.isEmpty()) ? null
+                : row -> OwnershipSnapshot.matches(row.getDisplayName(), query);
+        // Both reads use the same view, so the page never mixes two snapshots
+        OwnershipSnapshot.View view = snapshot.view();
+        if (view == null) {
+            throw new GeneralException("Live ownership query did not complete and no snapshot is available", failure);
+        }
+        OwnershipSnapshot.Page bundles = view.read(callerId, true, filter, first, max);
+        OwnershipSnapshot.Page entitlements = view.read(callerId, false, filter, first, max);
+
+        List<Map<String, Object>> listDTO = new ArrayList<>();
+        List<OwnershipSnapshot.Row> rows = new ArrayList<>(bundles.getRows());
+        rows.addAll(entitlements.getRows());
+        for (OwnershipSnapshot.Row row : rows) {
+            Map<String, Object> result = new HashMap<>();
+            result.put("type", row.isBundle() ? "bundle" : "managedAttribute");
+            result.put("id", row.getId());
+            result.put("name", row.getName());
+            result.put("displayName", row.getDisplayName());
+            result.put("attributeName", row.getAttributeName());
+            result.put("applicationName", row.getApplicationName());
+            result.put("isRole", row.isBundle());
+            result.put(row.isBundle() ? "disabled" : "requestable", row.getFlag());
+
+            Map<String, Object> owner = new HashMap<>();
+            owner.put("id", callerId);
+            owner.put("displayName", caller.getDisplayName());
+            owner.put("name", caller.getName());
+            result.put("owner", owner);
+            result.put("extendedAttributes", new HashMap<String, Object>());
+
+            listDTO.add(result);
+        }
+        listDTO.sort(ITEM_ORDER);
+
+        return new StaleListResult(listDTO, bundles.getTotal() + entitlements.getTotal(),
+                new Date(view.getCreated()));
+    }
+
+    /**
+     * Query one page of the roles and entitlements owned by the caller
+     *
+     * @param context The context to query with
+     * @param callerId Id of the logged in identity
+     * @param query Optional search term to filter results
+     * @param start Start index for paging
+     * @param limit Number of items to return
+     * @param locale The caller's locale
+     * @return A ListResult of the objects
+     * @throws GeneralException
+     */
+    private ListResult listOwnedItems(SailPointContext context, String callerId, String query,
+            Integer start, Integer limit, Locale locale) throws GeneralException {
+
+        int total = 0;
+        List<Map<String, Object>> listDTO = new ArrayList<>();
+
         // Set default values for pagination if not provided
         if (start == null) start = 0;
         if (limit == null) limit = 20;
 
+        // Descriptions for each page are resolved in one batch in the caller's locale
+        LocalizedDescriptionResolver descriptionResolver = new LocalizedDescriptionResolver(context, locale);
+
         QueryOptions qo = new QueryOptions();
-        qo.add(Filter.eq("owner.id", caller.getId()));
+        qo.add(Filter.eq("owner.id", callerId));
         qo.add(Filter.eq("type", "business"));
         
         // Add search filter if query parameter is provided
@@ -103,10 +258,19 @@ public class EntitlementOwnershipResource extends BasePluginResource {
         
         // Count total bundles owned by the user
         int bundleCount = context.countObjects(Bundle.class, qo);
+
+        // Page in id order so the snapshot fallback pages the same way
+        qo.addOrdering("id", true);
         
         // Get bundles with pagination
         if (bundleCount > 0) {
             List<Bundle> bundles = context.getObjects(Bundle.class, qo);
+            List<String> bundleIds = new ArrayList<>();
+            for (Bundle bundle : bundles) {
+                bundleIds.add(bundle.getId());
+            }
+            Map<String, String> descriptions = descriptionResolver.resolve(bundleIds);
+            
             for (Bundle bundle : bundles) {
                 Map<String, Object> result = new HashMap<>();
                 
@@ -117,8 +281,13 @@ public class EntitlementOwnershipResource extends BasePluginResource {
                 result.put("displayName", bundle.getDisplayName());
                 result.put("attributeName", "assignedRoles");
                 result.put("applicationName", "IdentityIQ");
-                result.put("description", bundle.getDescription("en_US"));
+                String description = descriptions.get(bundle.getId());
+                if (description == null) {
+                    description = bundle.getDescription(descriptionResolver.getDefaultLocale());
+                }
+                result.put("description", description);
                 result.put("disabled", bundle.isDisabled());
+                result.put("isRole", true);
                 
                 // Set owner information
                 Map<String, Object> owner = new HashMap<>();
@@ -143,7 +312,7 @@ public class EntitlementOwnershipResource extends BasePluginResource {
         
         // Reset query options for entitlements
         qo = new QueryOptions();
-        qo.add(Filter.eq("owner.id", caller.getId()));
+        qo.add(Filter.eq("owner.id", callerId));
         if (query != null && !query.isEmpty()) {
             Filter nameFilter = Filter.like("displayName", query);
             qo.add(Filter.or(nameFilter));
@@ -154,10 +323,20 @@ public class EntitlementOwnershipResource extends BasePluginResource {
         
         // Count total entitlements owned by the user
         int entitlementCount = context.countObjects(ManagedAttribute.class, qo);
+        qo.addOrdering("id", true);
         
         // Get Entitlements with pagination
         if (entitlementCount > 0) {
             List<ManagedAttribute> entitlements = context.getObjects(ManagedAttribute.class, qo);
+            List<String> entitlementIds = new ArrayList<>();
+            for (ManagedAttribute entitlement : entitlements) {
+                entitlementIds.add(entitlement.getId());
+            }
+            Map<String, String> descriptions = descriptionResolver.resolve(entitlementIds);
+            
+            // Role membership for the whole page comes from one index lookup
+            Map<String, Integer> roleCounts = EntitlementRoleIndex.getInstance().countRoles(entitlements);
+            
             for (ManagedAttribute entitlement : entitlements) {
                 Map<String, Object> result = new HashMap<>();
                 
@@ -168,8 +347,18 @@ public class EntitlementOwnershipResource extends BasePluginResource {
                 result.put("displayName", entitlement.getDisplayName());
                 result.put("attributeName", entitlement.getAttribute());
                 result.put("applicationName", entitlement.getApplication().getName());
-                result.put("description", entitlement.getDescription("en_US"));
+                String description = descriptions.get(entitlement.getId());
+                if (description == null) {
+                    description = entitlement.getDescription(descriptionResolver.getDefaultLocale());
+                }
+                result.put("description", description);
                 result.put("requestable", entitlement.isRequestable());
+                result.put("isRole", false);
+                if (roleCounts != null) {
+                    int roleCount = roleCounts.getOrDefault(entitlement.getId(), 0);
+                    result.put("hasRoles", roleCount > 0);
+                    result.put("roleCount", roleCount);
+                }
                 
                 // Set owner information
                 Map<String, Object> owner = new HashMap<>();
@@ -193,17 +382,7 @@ public class EntitlementOwnershipResource extends BasePluginResource {
         }
         
         // Sort by application name then name
-        listDTO.sort((a, b) -> {
-            String appA = (String) a.get("applicationName");
-            String appB = (String) b.get("applicationName");
-            int appCompare = appA.compareTo(appB);
-            if (appCompare != 0) {
-                return appCompare;
-            }
-            String nameA = (String) a.get("name");
-            String nameB = (String) b.get("name");
-            return nameA.compareTo(nameB);
-        });
+        listDTO.sort(ITEM_ORDER);
 
         // Set total count for pagination
         total = bundleCount + entitlementCount;
@@ -211,6 +390,223 @@ public class EntitlementOwnershipResource extends BasePluginResource {
         return new ListResult(listDTO, total);
     }
 
+    /**
+     * Start a background job moving the roles and entitlements of one owner
+     * to another. The request body takes sourceOwner and targetOwner (name or
+     * id), and optionally a type of bundle or managedAttribute to limit the
+     * items moved. A filter string may further restrict the items, and then
+     * the type is required since the filter is checked against that class.
+     *
+     * @param request The reassignment request
+     * @return The initial status of the job, including its id
+     * @throws GeneralException
+     */
+    @POST
+    @Path("reassign")
+    @Deferred
+    public Map<String, Object> reassign(Map<String, Object> request) throws GeneralException {
+        authorize(new CapabilityAuthorizer("SystemAdministrator"));
+
+        if (request == null) {
+            throw new BadRequestException("A reassignment request is required");
+        }
+
+        SailPointContext context = getContext();
+        Identity source = findIdentity(context, (String) request.get("sourceOwner"), "sourceOwner");
+        Identity target = findIdentity(context, (String) request.get("targetOwner"), "targetOwner");
+        if (source.getId().equals(target.getId())) {
+            throw new BadRequestException("Source and target owner must be different");
+        }
+
+        String type = (String) request.get("type");
+        if (type != null && !OwnershipReassignmentJob.TYPE_BUNDLE.equals(type)
+                && !OwnershipReassignmentJob.TYPE_MANAGED_ATTRIBUTE.equals(type)) {
+            throw new BadRequestException("Unsupported type: " + type);
+        }
+
+        String filter = (String) request.get("filter");
+        if (filter != null && !filter.isEmpty()) {
+            // A filter only makes sense against the properties of one class
+            if (type == null) {
+                throw new BadRequestException("A type is required when a filter is given");
+            }
+            validateFilter(context, filter, OwnershipReassignmentJob.getTargetClasses(type));
+        }
+
+        String jobId = OwnershipReassignmentJob.start(context, getLoggedInUserName(), source, target,
+                filter, type, getSettingInt(OwnershipReassignmentJob.SETTING_BATCH_SIZE));
+
+        log.info(getLoggedInUserName() + " started reassigning items from " + source.getName()
+                + " to " + target.getName());
+        return OwnershipReassignmentJob.getStatus(context, jobId);
+    }
+
+    /**
+     * Returns the progress of a reassignment job
+     *
+     * @param jobId The id returned when the job was started
+     * @return The status of the job
+     * @throws GeneralException
+     */
+    @GET
+    @Path("reassign/{jobId}")
+    @Deferred
+    public Map<String, Object> getReassignStatus(@PathParam("jobId") String jobId) throws GeneralException {
+        authorize(new CapabilityAuthorizer("SystemAdministrator"));
+
+        Map<String, Object> status = OwnershipReassignmentJob.getStatus(getContext(), jobId);
+        if (status == null) {
+            throw new NotFoundException("Reassignment job not found: " + jobId);
+        }
+        return status;
+    }
+
+    /**
+     * Start a background report of every role and entitlement owner across
+     * all identities. The request body may set format to csv (default) or
+     * jsonl.gz. The report runs and is kept on this node only, so its status
+     * and download must be requested from the same node.
+     *
+     * @param request The report request, may be empty
+     * @return The initial status of the job, including its id
+     * @throws GeneralException
+     */
+    @POST
+    @Path("report")
+    @Deferred
+    public Map<String, Object> startReport(Map<String, Object> request) throws GeneralException {
+        authorize(new CapabilityAuthorizer("SystemAdministrator"));
+
+        String format = (request != null) ? (String) request.get("format") : null;
+        if (format == null || format.isEmpty()) {
+            format = OwnershipReportJob.FORMAT_CSV;
+        }
+        if (!OwnershipReportJob.FORMAT_CSV.equals(format) && !OwnershipReportJob.FORMAT_JSON_LINES.equals(format)) {
+            throw new BadRequestException("Unsupported format: " + format);
+        }
+
+        OwnershipReportJob job = new OwnershipReportJob(getLoggedInUserName(), format,
+                getSettingInt(OwnershipReportJob.SETTING_PARALLELISM));
+        OwnershipReportJob.submit(job);
+
+        log.info(getLoggedInUserName() + " started an ownership report");
+        return job.getStatus();
+    }
+
+    /**
+     * Returns the progress of an ownership report
+     *
+     * @param jobId The id returned when the report was started
+     * @return The status of the report
+     * @throws GeneralException
+     */
+    @GET
+    @Path("report/{jobId}")
+    @Deferred
+    public Map<String, Object> getReportStatus(@PathParam("jobId") String jobId) throws GeneralException {
+        authorize(new CapabilityAuthorizer("SystemAdministrator"));
+
+        return findReport(jobId).getStatus();
+    }
+
+    /**
+     * Download a completed ownership report
+     *
+     * @param jobId The id returned when the report was started
+     * @return The report file
+     * @throws GeneralException
+     */
+    @GET
+    @Path("report/{jobId}/download")
+    @Produces({ MediaType.APPLICATION_OCTET_STREAM })
+    @Deferred
+    public Response downloadReport(@PathParam("jobId") String jobId) throws GeneralException {
+        authorize(new CapabilityAuthorizer("SystemAdministrator"));
+
+        OwnershipReportJob job = findReport(jobId);
+        File file = job.getFile();
+        if (file == null || !file.exists()) {
+            throw new NotFoundException("Ownership report is not complete: " + jobId);
+        }
+
+        return Response.ok(file, job.getContentType())
+                .header("Content-Disposition", "attachment; filename=\"" + file.getName() + "\"")
+                .build();
+    }
+
+    private OwnershipReportJob findReport(String jobId) {
+        OwnershipReportJob job = OwnershipReportJob.get(jobId);
+        if (job == null) {
+            throw new NotFoundException("Ownership report not found on this node: " + jobId);
+        }
+        return job;
+    }
+
+    /**
+     * Look up an identity by name or id for a request parameter
+     */
+    private Identity findIdentity(SailPointContext context, String nameOrId, String param) throws GeneralException {
+        if (nameOrId == null || nameOrId.isEmpty()) {
+            throw new BadRequestException(param + " is required");
+        }
+        Identity identity = context.getObject(Identity.class, nameOrId);
+        if (identity == null) {
+            throw new BadRequestException(param + " not found: " + nameOrId);
+        }
+        return identity;
+    }
+
+    /**
+     * Compile a filter string and run a count with it against each class so
+     * unknown properties are rejected here instead of failing the job.
+     */
+    private void validateFilter(SailPointContext context, String filter,
+            List<Class<? extends SailPointObject>> classes) throws GeneralException {
+        for (Class<? extends SailPointObject> clazz : classes) {
+            try {
+                QueryOptions qo = new QueryOptions();
+                qo.add(Filter.compile(filter));
+                context.countObjects(clazz, qo);
+            } catch (GeneralException | RuntimeException e) {
+                throw new BadRequestException("Invalid filter for " + clazz.getSimpleName() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Returns the throttle rejection counters and current load
+     *
+     * @return Map of metric name to value
+     * @throws GeneralException
+     */
+    @GET
+    @Path("metrics")
+    @Deferred
+    public Map<String, Object> getMetrics() throws GeneralException {
+        authorize(new CapabilityAuthorizer("SystemAdministrator"));
+
+        Map<String, Object> metrics = new HashMap<>();
+        metrics.put("throttle", RequestThrottle.getInstance().getMetrics());
+        return metrics;
+    }
+
+    /**
+     * @return the admission limits currently configured in the plugin settings
+     */
+    private RequestThrottle.Limits getThrottleLimits() {
+        return new RequestThrottle.Limits(
+                getSettingInt(RequestThrottle.SETTING_REQUESTS_PER_MINUTE),
+                getSettingInt(RequestThrottle.SETTING_BURST),
+                getSettingInt(RequestThrottle.SETTING_MAX_CONCURRENT));
+    }
+
+    /**
+     * @return the ownership snapshot, for the plugin service to write
+     */
+    public static OwnershipSnapshot getSnapshot() {
+        return snapshot;
+    }
+
     @Override
     public String getPluginName() {
         return "EntitlementOwnershipWidget";
@@ -0,0 +1,262 @@
+package com.sailpoint.plugins.rest;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import sailpoint.api.SailPointContext;
+import sailpoint.object.Bundle;
+import sailpoint.object.Filter;
+import sailpoint.object.ManagedAttribute;
+import sailpoint.object.Profile;
+import sailpoint.object.QueryOptions;
+import sailpoint.tools.GeneralException;
+
+/**
+ * Reverse index from entitlement to the roles whose profiles grant it.
+ *
+ * The index is built in one pass over all role profiles by the plugin
+ * service, then refreshed incrementally by re-indexing only the roles
+ * created or modified since the last refresh. A periodic full rebuild picks
+ * up deleted roles. Until the first build completes lookups return null so
+ * callers can leave the role fields unset rather than block the request.
+ * Requests never start a refresh, so no thread outlives the plugin.
+ */
+public class EntitlementRoleIndex {
+
+    /**
+     * The logger to use
+     */
+    private static final Log log = LogFactory.getLog(EntitlementRoleIndex.class);
+
+    /**
+     * Plugin setting for how often the index is refreshed
+     */
+    public static final String SETTING_REFRESH_SECONDS = "roleIndexRefreshSeconds";
+
+    /**
+     * Refresh interval used when the setting is missing or not positive
+     */
+    public static final int DEFAULT_REFRESH_SECONDS = 300;
+
+    /**
+     * Every this many refreshes the index is rebuilt from scratch
+     */
+    private static final int FULL_REBUILD_EVERY = 12;
+
+    /**
+     * Number of roles loaded between decache calls
+     */
+    private static final int DECACHE_INTERVAL = 100;
+
+    private static final EntitlementRoleIndex instance = new EntitlementRoleIndex();
+
+    /**
+     * The current index, replaced wholesale on a full rebuild
+     */
+    private volatile IndexData data;
+
+    /**
+     * Start of the last successful refresh, used as the cutoff for changed roles
+     */
+    private volatile long lastRefresh;
+
+    /**
+     * Start of the last refresh attempt, successful or not. Scheduling is
+     * based on this so a failing refresh is retried once per interval
+     * rather than on every service run.
+     */
+    private volatile long lastAttempt;
+    private volatile int refreshCount;
+
+    /**
+     * @return the shared index for this plugin
+     */
+    public static EntitlementRoleIndex getInstance() {
+        return instance;
+    }
+
+    /**
+     * Refresh the index if the last attempt is older than the refresh
+     * interval. Called from the plugin service on its own thread.
+     *
+     * @param context The service's context
+     * @param refreshSeconds Configured refresh interval
+     */
+    public void refreshIfStale(SailPointContext context, int refreshSeconds) {
+        long interval = TimeUnit.SECONDS.toMillis(refreshSeconds > 0 ? refreshSeconds : DEFAULT_REFRESH_SECONDS);
+        if (System.currentTimeMillis() - lastAttempt >= interval) {
+            refresh(context);
+        }
+    }
+
+    /**
+     * Count the roles granting each of the given entitlements.
+     *
+     * @param entitlements One page of entitlements
+     * @return Map of entitlement id to role count, or null if the index has
+     *         not been built yet
+     */
+    public Map<String, Integer> countRoles(Collection<ManagedAttribute> entitlements) {
+        IndexData current = data;
+        if (current == null) {
+            return null;
+        }
+
+        Map<String, Integer> counts = new HashMap<>();
+        for (ManagedAttribute entitlement : entitlements) {
+            if (entitlement.getApplication() == null) {
+                continue;
+            }
+            Set<String> roles = current.rolesByEntitlement.get(
+                    key(entitlement.getApplication().getId(), entitlement.getAttribute(), entitlement.getValue()));
+            counts.put(entitlement.getId(), (roles != null) ? roles.size() : 0);
+        }
+        return counts;
+    }
+
+    private void refresh(SailPointContext context) {
+        long started = System.currentTimeMillis();
+        lastAttempt = started;
+        try {
+            if (data == null || refreshCount % FULL_REBUILD_EVERY == 0) {
+                IndexData rebuilt = new IndexData();
+                int roles = indexRoles(context, rebuilt, null);
+                data = rebuilt;
+                log.info("Built entitlement role index from " + roles + " roles in "
+                        + (System.currentTimeMillis() - started) + "ms");
+            } else {
+                Filter changed = Filter.or(
+                        Filter.gt("modified", new Date(lastRefresh)),
+                        Filter.gt("created", new Date(lastRefresh)));
+                int roles = indexRoles(context, data, changed);
+                if (log.isDebugEnabled()) {
+                    log.debug("Re-indexed " + roles + " changed roles");
+                }
+            }
+
+            refreshCount++;
+            lastRefresh = started;
+        } catch (Exception e) {
+            log.error("Unable to refresh entitlement role index", e);
+        }
+    }
+
+    /**
+     * Index the profiles of every role matching the filter.
+     *
+     * @return the number of roles indexed
+     */
+    private int indexRoles(SailPointContext context, IndexData index, Filter filter) throws GeneralException {
+        QueryOptions qo = new QueryOptions();
+        if (filter != null) {
+            qo.add(filter);
+        }
+
+        // Collect ids first so decaching does not disturb the open cursor
+        List<String> roleIds = new ArrayList<>();
+        Iterator<Object[]> rows = context.search(Bundle.class, qo, "id");
+        while (rows.hasNext()) {
+            roleIds.add((String) rows.next()[0]);
+        }
+
+        int count = 0;
+        for (String roleId : roleIds) {
+            Bundle role = context.getObjectById(Bundle.class, roleId);
+            if (role != null) {
+                Set<String> keys = new HashSet<>();
+                if (role.getProfiles() != null) {
+                    for (Profile profile : role.getProfiles()) {
+                        if (profile.getApplication() != null && profile.getConstraints() != null) {
+                            for (Filter constraint : profile.getConstraints()) {
+                                collectKeys(profile.getApplication().getId(), constraint, keys);
+                            }
+                        }
+                    }
+                }
+                index.put(roleId, keys);
+            }
+
+            if (++count % DECACHE_INTERVAL == 0) {
+                context.decache();
+            }
+        }
+        context.decache();
+        return count;
+    }
+
+    /**
+     * Walk a profile constraint and collect a key for every attribute value
+     * it grants. Only positive eq, in and containsAll leaves count; negated
+     * subtrees and other operations such as ne or notnull do not grant a
+     * specific entitlement.
+     */
+    private static void collectKeys(String applicationId, Filter filter, Set<String> keys) {
+        if (filter instanceof Filter.CompositeFilter) {
+            Filter.CompositeFilter composite = (Filter.CompositeFilter) filter;
+            if (composite.getOperation() == Filter.BooleanOperation.NOT) {
+                return;
+            }
+            List<Filter> children = composite.getChildren();
+            if (children != null) {
+                for (Filter child : children) {
+                    collectKeys(applicationId, child, keys);
+                }
+            }
+        } else if (filter instanceof Filter.LeafFilter) {
+            Filter.LeafFilter leaf = (Filter.LeafFilter) filter;
+            Filter.LogicalOperation operation = leaf.getOperation();
+            if (operation != Filter.LogicalOperation.EQ && operation != Filter.LogicalOperation.IN
+                    && operation != Filter.LogicalOperation.CONTAINS_ALL) {
+                return;
+            }
+            Object value = leaf.getValue();
+            if (value instanceof Collection) {
+                for (Object item : (Collection<?>) value) {
+                    keys.add(key(applicationId, leaf.getProperty(), item));
+                }
+            } else if (value != null) {
+                keys.add(key(applicationId, leaf.getProperty(), value));
+            }
+        }
+    }
+
+    private static String key(String applicationId, String attribute, Object value) {
+        return applicationId + "|" + attribute + "|" + String.valueOf(value).toLowerCase();
+    }
+
+    /**
+     * The forward and reverse maps. The forward map lets a changed role's
+     * old entries be removed before it is re-indexed.
+     */
+    private static class IndexData {
+        final ConcurrentHashMap<String, Set<String>> rolesByEntitlement = new ConcurrentHashMap<>();
+        final ConcurrentHashMap<String, Set<String>> entitlementsByRole = new ConcurrentHashMap<>();
+
+        void put(String roleId, Set<String> keys) {
+            Set<String> previous = entitlementsByRole.put(roleId, keys);
+            if (previous != null) {
+                for (String key : previous) {
+                    Set<String> roles = rolesByEntitlement.get(key);
+                    if (roles != null) {
+                        roles.remove(roleId);
+                    }
+                }
+            }
+            for (String key : keys) {
+                rolesByEntitlement.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(roleId);
+            }
+        }
+    }
+}
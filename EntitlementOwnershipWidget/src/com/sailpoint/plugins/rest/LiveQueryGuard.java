@@ -0,0 +1,153 @@
+package com.sailpoint.plugins.rest;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import sailpoint.api.SailPointContext;
+import sailpoint.api.SailPointFactory;
+import sailpoint.tools.GeneralException;
+
+/**
+ * Bounds how long a request waits on a live query before the caller falls
+ * back to the ownership snapshot.
+ *
+ * Queries always run on a worker with its own context, and the request
+ * gives up on them at the deadline. The context API offers no query
+ * timeout, so a query on the request thread could not be bounded. A JDBC
+ * query cannot be interrupted either, so a worker that missed its deadline
+ * keeps running; it takes over the request's throttle permit and releases
+ * it only when it finishes, and the pool is no larger than the concurrency
+ * cap, so abandoned queries still count against that cap.
+ *
+ * The pool is created on first use and shut down by the plugin service
+ * when IdentityIQ stops it, so no worker outlives the plugin.
+ */
+public class LiveQueryGuard {
+
+    /**
+     * The logger to use
+     */
+    private static final Log log = LogFactory.getLog(LiveQueryGuard.class);
+
+    /**
+     * Every guard of this plugin, so the service can shut them all down
+     */
+    private static final List<LiveQueryGuard> guards = new CopyOnWriteArrayList<>();
+
+    /**
+     * A live query
+     *
+     * @param <T> The result type
+     */
+    public interface Query<T> {
+        /**
+         * @param context The context to query with
+         * @return the result of the query
+         * @throws GeneralException
+         */
+        T run(SailPointContext context) throws GeneralException;
+    }
+
+    private final String name;
+    private ThreadPoolExecutor executor;
+
+    /**
+     * @param name Name used for the worker threads and in log messages
+     */
+    public LiveQueryGuard(String name) {
+        this.name = name;
+        guards.add(this);
+    }
+
+    /**
+     * Shut down the worker pool of every guard. Running queries finish and
+     * release their permits; a later query starts a new pool.
+     */
+    public static void shutdownAll() {
+        for (LiveQueryGuard guard : guards) {
+            guard.shutdown();
+        }
+    }
+
+    /**
+     * Run a live query on a worker and wait for it up to the deadline.
+     *
+     * @param contextName Name to create the worker context with
+     * @param permit The request's throttle permit, taken over by the worker
+     * @param deadlineMillis How long the request waits for the worker
+     * @param maxConcurrent The configured concurrency cap, used to size the worker pool
+     * @param query The query to run
+     * @return the result, or null if the query missed the deadline or no worker was free
+     * @throws GeneralException if the query failed
+     */
+    public <T> T run(String contextName, RequestThrottle.Permit permit, int deadlineMillis, int maxConcurrent,
+            Query<T> query) throws GeneralException {
+
+        RequestThrottle.Permit workerPermit = permit.transfer();
+        Future<T> live;
+        try {
+            live = getExecutor(maxConcurrent).submit(() -> {
+                try {
+                    SailPointContext workerContext = SailPointFactory.createContext(contextName);
+                    try {
+                        return query.run(workerContext);
+                    } finally {
+                        SailPointFactory.releaseContext(workerContext);
+                    }
+                } finally {
+                    workerPermit.close();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            workerPermit.close();
+            log.debug(name + " workers are all busy, serving the snapshot");
+            return null;
+        }
+
+        try {
+            return live.get(deadlineMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            log.debug(name + " query exceeded " + deadlineMillis + "ms, serving the snapshot");
+            return null;
+        } catch (ExecutionException e) {
+            throw new GeneralException(name + " query failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * @return the worker pool, created if needed and no larger than the configured concurrency cap
+     */
+    private synchronized ThreadPoolExecutor getExecutor(int maxConcurrent) {
+        int size = maxConcurrent > 0 ? maxConcurrent : RequestThrottle.DEFAULT_MAX_CONCURRENT;
+        if (executor == null || executor.isShutdown()) {
+            executor = new ThreadPoolExecutor(0, size, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        } else if (executor.getMaximumPoolSize() != size) {
+            executor.setMaximumPoolSize(size);
+        }
+        return executor;
+    }
+
+    private synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.sailpoint.plugins.rest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import sailpoint.api.Localizer;
+import sailpoint.api.SailPointContext;
+import sailpoint.object.Filter;
+import sailpoint.object.LocalizedAttribute;
+import sailpoint.object.QueryOptions;
+import sailpoint.tools.GeneralException;
+
+/**
+ * Resolves object descriptions for a page of rows in the caller's locale,
+ * falling back to the default locale. Descriptions are read in one batched
+ * query against the localized attribute store, and recently used values are
+ * kept in a small cache shared by all requests.
+ *
+ * Cached entries are not invalidated when a description is edited; an edited
+ * description can be served stale for up to CACHE_TTL_MILLIS (10 minutes).
+ */
+public class LocalizedDescriptionResolver {
+
+    /**
+     * The logger to use
+     */
+    private static final Log log = LogFactory.getLog(LocalizedDescriptionResolver.class);
+
+    /**
+     * Name of the localized attribute holding descriptions
+     */
+    private static final String ATT_DESCRIPTION = "description";
+
+    /**
+     * Maximum number of target ids in a single IN filter
+     */
+    private static final int MAX_IN_SIZE = 500;
+
+    /**
+     * Maximum number of cached descriptions across all locales
+     */
+    private static final int MAX_CACHE_ENTRIES = 5000;
+
+    /**
+     * How long a cached description is considered fresh
+     */
+    private static final long CACHE_TTL_MILLIS = 10 * 60 * 1000L;
+
+    /**
+     * Access-ordered LRU cache keyed by locale and target id. Misses are
+     * cached too so objects without a description are not queried per page.
+     */
+    private static final Map<String, CachedDescription> cache = Collections.synchronizedMap(
+            new LinkedHashMap<String, CachedDescription>(256, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CachedDescription> eldest) {
+                    return size() > MAX_CACHE_ENTRIES;
+                }
+            });
+
+    private final SailPointContext context;
+    private final String locale;
+    private final String defaultLocale;
+
+    /**
+     * @param context The context to query with
+     * @param locale The caller's locale, may be null to use the default
+     * @throws GeneralException
+     */
+    public LocalizedDescriptionResolver(SailPointContext context, Locale locale) throws GeneralException {
+        this.context = context;
+        this.defaultLocale = Localizer.getDefaultLocaleName(context.getConfiguration());
+        this.locale = (locale != null) ? locale.toString() : this.defaultLocale;
+    }
+
+    /**
+     * @return the locale used when the caller's locale has no description
+     */
+    public String getDefaultLocale() {
+        return defaultLocale;
+    }
+
+    /**
+     * Resolve descriptions for the given objects.
+     *
+     * @param targetIds Ids of the described objects
+     * @return Map of target id to description; ids without a description in
+     *         either locale are mapped to null
+     * @throws GeneralException
+     */
+    public Map<String, String> resolve(Collection<String> targetIds) throws GeneralException {
+        Map<String, String> descriptions = new HashMap<>();
+        List<String> misses = new ArrayList<>();
+        long now = System.currentTimeMillis();
+
+        for (String id : targetIds) {
+            CachedDescription cached = cache.get(cacheKey(id));
+            if (cached != null && cached.expires > now) {
+                descriptions.put(id, cached.value);
+            } else if (!descriptions.containsKey(id)) {
+                misses.add(id);
+            }
+        }
+
+        if (!misses.isEmpty()) {
+            Map<String, String> localized = new HashMap<>();
+            Map<String, String> defaults = new HashMap<>();
+            for (int i = 0; i < misses.size(); i += MAX_IN_SIZE) {
+                load(misses.subList(i, Math.min(i + MAX_IN_SIZE, misses.size())), localized, defaults);
+            }
+
+            long expires = now + CACHE_TTL_MILLIS;
+            for (String id : misses) {
+                String value = localized.containsKey(id) ? localized.get(id) : defaults.get(id);
+                cache.put(cacheKey(id), new CachedDescription(value, expires));
+                descriptions.put(id, value);
+            }
+        }
+
+        return descriptions;
+    }
+
+    /**
+     * Load the caller and default locale descriptions for one chunk of ids.
+     */
+    private void load(List<String> ids, Map<String, String> localized, Map<String, String> defaults)
+            throws GeneralException {
+
+        QueryOptions qo = new QueryOptions();
+        qo.add(Filter.in("targetId", ids));
+        qo.add(Filter.eq("attribute", ATT_DESCRIPTION));
+        if (locale.equals(defaultLocale)) {
+            qo.add(Filter.eq("locale", locale));
+        } else {
+            qo.add(Filter.in("locale", Arrays.asList(locale, defaultLocale)));
+        }
+
+        Iterator<Object[]> rows = context.search(LocalizedAttribute.class, qo, "targetId, locale, value");
+        while (rows.hasNext()) {
+            Object[] row = rows.next();
+            String targetId = (String) row[0];
+            String rowLocale = (String) row[1];
+            String value = (String) row[2];
+            if (locale.equals(rowLocale)) {
+                localized.put(targetId, value);
+            } else {
+                defaults.put(targetId, value);
+            }
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Loaded " + (localized.size() + defaults.size()) + " descriptions for "
+                    + ids.size() + " objects in locale " + locale);
+        }
+    }
+
+    private String cacheKey(String targetId) {
+        return locale + "|" + targetId;
+    }
+
+    /**
+     * A cached description and its expiration time
+     */
+    private static class CachedDescription {
+        final String value;
+        final long expires;
+
+        CachedDescription(String value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+}
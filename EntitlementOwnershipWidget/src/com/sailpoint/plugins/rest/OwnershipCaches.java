@@ -0,0 +1,51 @@
+package com.sailpoint.plugins.rest;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Registry of caches holding owner to item data. Anything that changes
+ * ownership in bulk calls {@link #invalidate()} when it finishes.
+ *
+ * The registry only reaches caches of this plugin on this node. Other
+ * cluster nodes, the MyEntitlementsandRoles snapshot and the description
+ * cache are not told, and pick up the change on their own refresh
+ * schedules.
+ */
+public class OwnershipCaches {
+
+    /**
+     * The logger to use
+     */
+    private static final Log log = LogFactory.getLog(OwnershipCaches.class);
+
+    private static final List<Runnable> invalidators = new CopyOnWriteArrayList<>();
+
+    private OwnershipCaches() {
+    }
+
+    /**
+     * Register a callback to run whenever ownership changes in bulk.
+     *
+     * @param invalidator The callback clearing a cache
+     */
+    public static void register(Runnable invalidator) {
+        invalidators.add(invalidator);
+    }
+
+    /**
+     * Invalidate every registered ownership cache.
+     */
+    public static void invalidate() {
+        for (Runnable invalidator : invalidators) {
+            try {
+                invalidator.run();
+            } catch (RuntimeException e) {
+                log.warn("Unable to invalidate ownership cache", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,401 @@
+package com.sailpoint.plugins.rest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import sailpoint.api.SailPointContext;
+import sailpoint.api.SailPointFactory;
+import sailpoint.object.Attributes;
+import sailpoint.object.Bundle;
+import sailpoint.object.Filter;
+import sailpoint.object.Identity;
+import sailpoint.object.ManagedAttribute;
+import sailpoint.object.QueryOptions;
+import sailpoint.object.SailPointObject;
+import sailpoint.object.TaskItemDefinition;
+import sailpoint.object.TaskResult;
+import sailpoint.tools.GeneralException;
+import sailpoint.tools.Message;
+import sailpoint.tools.Util;
+
+/**
+ * Background job moving every Bundle and ManagedAttribute owned by one
+ * identity to another. Items are updated in commit batches with a decache
+ * between batches, and failures of individual items are recorded without
+ * stopping the job.
+ *
+ * The job is tracked as a TaskResult whose id is the job id. Progress and
+ * failures are saved after every batch, so any cluster node can report the
+ * status and the record survives a restart. The job itself runs on the node
+ * that accepted the request; if that node stops, the TaskResult is left
+ * incomplete and is reported as interrupted by that node. Only items still
+ * owned by the source owner are moved, so submitting the same request again
+ * picks up where an interrupted job stopped.
+ */
+public class OwnershipReassignmentJob implements Runnable {
+
+    /**
+     * The logger to use
+     */
+    private static final Log log = LogFactory.getLog(OwnershipReassignmentJob.class);
+
+    /**
+     * Plugin setting for the number of items updated per commit
+     */
+    public static final String SETTING_BATCH_SIZE = "reassignBatchSize";
+
+    /**
+     * Batch size used when the setting is missing or not positive
+     */
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
+    /**
+     * Job states
+     */
+    public static final String STATUS_PENDING = "pending";
+    public static final String STATUS_RUNNING = "running";
+    public static final String STATUS_COMPLETED = "completed";
+    public static final String STATUS_FAILED = "failed";
+    public static final String STATUS_INTERRUPTED = "interrupted";
+
+    /**
+     * Item types, matching the type reported in the list rows
+     */
+    public static final String TYPE_BUNDLE = "bundle";
+    public static final String TYPE_MANAGED_ATTRIBUTE = "managedAttribute";
+
+    /**
+     * TaskResult attributes holding the job state
+     */
+    private static final String ATT_STATUS = "reassignStatus";
+    private static final String ATT_SOURCE_OWNER = "sourceOwnerId";
+    private static final String ATT_TARGET_OWNER = "targetOwnerId";
+    private static final String ATT_FILTER = "filter";
+    private static final String ATT_TYPE = "type";
+    private static final String ATT_TOTAL = "total";
+    private static final String ATT_PROCESSED = "processed";
+    private static final String ATT_UPDATED = "updated";
+    private static final String ATT_FAILED = "failed";
+    private static final String ATT_FAILURES = "failures";
+    private static final String ATT_ERROR = "error";
+
+    /**
+     * Maximum number of failure messages kept per job
+     */
+    private static final int MAX_FAILURE_MESSAGES = 100;
+
+    /**
+     * Ids of the jobs running or queued on this node
+     */
+    private static final Set<String> active = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Jobs run one at a time so two reassignments never fight over the same rows
+     */
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "OwnershipReassignment");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String id;
+    private final String launcher;
+    private final String sourceOwnerId;
+    private final String targetOwnerId;
+    private final String filter;
+    private final String type;
+    private final int batchSize;
+
+    // Only touched by the job thread
+    private String status = STATUS_RUNNING;
+    private int total;
+    private int processed;
+    private int updated;
+    private int failed;
+    private final List<String> failures = new ArrayList<>();
+    private String error;
+
+    private OwnershipReassignmentJob(String id, String launcher, String sourceOwnerId, String targetOwnerId,
+            String filter, String type, int batchSize) {
+        this.id = id;
+        this.launcher = launcher;
+        this.sourceOwnerId = sourceOwnerId;
+        this.targetOwnerId = targetOwnerId;
+        this.filter = filter;
+        this.type = type;
+        this.batchSize = batchSize > 0 ? batchSize : DEFAULT_BATCH_SIZE;
+    }
+
+    /**
+     * @param type An item type, or null for both
+     * @return the classes a job of the given type updates
+     */
+    public static List<Class<? extends SailPointObject>> getTargetClasses(String type) {
+        List<Class<? extends SailPointObject>> classes = new ArrayList<>();
+        if (type == null || TYPE_BUNDLE.equals(type)) {
+            classes.add(Bundle.class);
+        }
+        if (type == null || TYPE_MANAGED_ATTRIBUTE.equals(type)) {
+            classes.add(ManagedAttribute.class);
+        }
+        return classes;
+    }
+
+    /**
+     * Create the TaskResult tracking a job and queue the job to run in the
+     * background on this node.
+     *
+     * @param context The request context, used to save the TaskResult
+     * @param launcher Name of the identity starting the job
+     * @param source The current owner
+     * @param target The new owner
+     * @param filter Optional filter string further restricting the items
+     * @param type Optional item type to limit the job to, null for both
+     * @param batchSize Number of items updated per commit
+     * @return the job id
+     * @throws GeneralException
+     */
+    public static String start(SailPointContext context, String launcher, Identity source, Identity target,
+            String filter, String type, int batchSize) throws GeneralException {
+
+        TaskResult result = new TaskResult();
+        result.setName("Ownership reassignment from " + source.getName() + " to " + target.getName()
+                + " " + UUID.randomUUID());
+        result.setType(TaskItemDefinition.Type.Generic);
+        result.setLauncher(launcher);
+        result.setLaunched(new Date());
+        result.setHost(Util.getHostName());
+        result.setAttribute(ATT_STATUS, STATUS_PENDING);
+        result.setAttribute(ATT_SOURCE_OWNER, source.getId());
+        result.setAttribute(ATT_TARGET_OWNER, target.getId());
+        result.setAttribute(ATT_FILTER, filter);
+        result.setAttribute(ATT_TYPE, type);
+        context.saveObject(result);
+        context.commitTransaction();
+
+        OwnershipReassignmentJob job = new OwnershipReassignmentJob(result.getId(), launcher,
+                source.getId(), target.getId(), filter, type, batchSize);
+        active.add(job.id);
+        executor.submit(job);
+        return job.id;
+    }
+
+    /**
+     * Read the progress of a job from its TaskResult.
+     *
+     * @param context The context to read with
+     * @param id The job id
+     * @return the status, or null if there is no such job
+     * @throws GeneralException
+     */
+    public static Map<String, Object> getStatus(SailPointContext context, String id) throws GeneralException {
+        TaskResult result = context.getObjectById(TaskResult.class, id);
+        Attributes<String, Object> attributes = (result != null) ? result.getAttributes() : null;
+        if (attributes == null || !attributes.containsKey(ATT_SOURCE_OWNER)) {
+            return null;
+        }
+
+        String status = attributes.getString(ATT_STATUS);
+        if (result.getCompleted() == null && Util.getHostName().equals(result.getHost()) && !active.contains(id)) {
+            // Started on this node but no longer running here, so the node restarted mid-job
+            status = STATUS_INTERRUPTED;
+        }
+
+        Map<String, Object> map = new TreeMap<>();
+        map.put("id", id);
+        map.put("status", status);
+        map.put("host", result.getHost());
+        map.put("sourceOwnerId", attributes.getString(ATT_SOURCE_OWNER));
+        map.put("targetOwnerId", attributes.getString(ATT_TARGET_OWNER));
+        map.put("filter", attributes.getString(ATT_FILTER));
+        map.put("type", attributes.getString(ATT_TYPE));
+        map.put("total", attributes.getInt(ATT_TOTAL));
+        map.put("processed", attributes.getInt(ATT_PROCESSED));
+        map.put("updated", attributes.getInt(ATT_UPDATED));
+        map.put("failed", attributes.getInt(ATT_FAILED));
+        map.put("error", attributes.getString(ATT_ERROR));
+        map.put("created", result.getLaunched());
+        map.put("completed", result.getCompleted());
+        Object failures = attributes.get(ATT_FAILURES);
+        map.put("failures", (failures != null) ? failures : Collections.emptyList());
+        return map;
+    }
+
+    @Override
+    public void run() {
+        SailPointContext context = null;
+        try {
+            context = SailPointFactory.createContext(launcher);
+
+            List<List<String>> ids = new ArrayList<>();
+            List<Class<? extends SailPointObject>> classes = getTargetClasses(type);
+            for (Class<? extends SailPointObject> clazz : classes) {
+                List<String> classIds = findIds(context, clazz);
+                ids.add(classIds);
+                total += classIds.size();
+            }
+            log.info("Reassigning " + total + " items from " + sourceOwnerId + " to " + targetOwnerId);
+            saveProgress(context, false);
+
+            for (int i = 0; i < classes.size(); i++) {
+                reassign(context, classes.get(i), ids.get(i));
+            }
+
+            status = STATUS_COMPLETED;
+        } catch (Throwable t) {
+            log.error("Ownership reassignment " + id + " failed", t);
+            error = "Job failed: " + t.getMessage();
+            status = STATUS_FAILED;
+        } finally {
+            if (context != null) {
+                try {
+                    if (STATUS_FAILED.equals(status)) {
+                        context.rollbackTransaction();
+                    }
+                    saveProgress(context, true);
+                } catch (Throwable t) {
+                    log.error("Unable to save the result of ownership reassignment " + id, t);
+                }
+                try {
+                    SailPointFactory.releaseContext(context);
+                } catch (GeneralException e) {
+                    log.warn("Unable to release context", e);
+                }
+            }
+            active.remove(id);
+            if (updated > 0) {
+                OwnershipCaches.invalidate();
+            }
+            log.info("Ownership reassignment " + id + " " + status + ": " + updated + " updated, "
+                    + failed + " failed");
+        }
+    }
+
+    /**
+     * Save the current counters to the TaskResult and commit.
+     */
+    private void saveProgress(SailPointContext context, boolean finished) throws GeneralException {
+        TaskResult result = context.getObjectById(TaskResult.class, id);
+        if (result == null) {
+            log.warn("TaskResult for ownership reassignment " + id + " was deleted");
+            return;
+        }
+
+        result.setAttribute(ATT_STATUS, status);
+        result.setAttribute(ATT_TOTAL, total);
+        result.setAttribute(ATT_PROCESSED, processed);
+        result.setAttribute(ATT_UPDATED, updated);
+        result.setAttribute(ATT_FAILED, failed);
+        result.setAttribute(ATT_FAILURES, new ArrayList<>(failures));
+        result.setAttribute(ATT_ERROR, error);
+        if (total > 0) {
+            result.setPercentComplete(processed * 100 / total);
+        }
+
+        if (finished) {
+            result.setCompleted(new Date());
+            if (STATUS_FAILED.equals(status)) {
+                result.setCompletionStatus(TaskResult.CompletionStatus.Error);
+                result.addMessage(new Message(Message.Type.Error, error));
+            } else if (failed > 0) {
+                result.setCompletionStatus(TaskResult.CompletionStatus.Warning);
+            } else {
+                result.setCompletionStatus(TaskResult.CompletionStatus.Success);
+            }
+        }
+
+        context.saveObject(result);
+        context.commitTransaction();
+    }
+
+    /**
+     * Collect the ids of the matching items up front so commits and
+     * decaches do not disturb an open cursor.
+     */
+    private List<String> findIds(SailPointContext context, Class<? extends SailPointObject> clazz)
+            throws GeneralException {
+
+        QueryOptions qo = new QueryOptions();
+        qo.add(Filter.eq("owner.id", sourceOwnerId));
+        if (filter != null && !filter.isEmpty()) {
+            qo.add(Filter.compile(filter));
+        }
+
+        List<String> ids = new ArrayList<>();
+        Iterator<Object[]> rows = context.search(clazz, qo, "id");
+        while (rows.hasNext()) {
+            ids.add((String) rows.next()[0]);
+        }
+        return ids;
+    }
+
+    private void reassign(SailPointContext context, Class<? extends SailPointObject> clazz, List<String> ids)
+            throws GeneralException {
+
+        for (int i = 0; i < ids.size(); i += batchSize) {
+            List<String> batch = ids.subList(i, Math.min(i + batchSize, ids.size()));
+
+            // Reload the new owner each batch since the previous decache detached it
+            Identity target = context.getObjectById(Identity.class, targetOwnerId);
+            if (target == null) {
+                throw new GeneralException("Target owner no longer exists: " + targetOwnerId);
+            }
+
+            int saved = 0;
+            for (String itemId : batch) {
+                try {
+                    SailPointObject item = context.getObjectById(clazz, itemId);
+                    if (item == null) {
+                        addFailure(1, clazz.getSimpleName() + " " + itemId + " no longer exists");
+                    } else if (item.getOwner() == null || !sourceOwnerId.equals(item.getOwner().getId())) {
+                        addFailure(1, clazz.getSimpleName() + " " + itemId + " is no longer owned by the source owner");
+                    } else {
+                        item.setOwner(target);
+                        context.saveObject(item);
+                        saved++;
+                    }
+                } catch (Exception e) {
+                    log.warn("Unable to reassign " + clazz.getSimpleName() + " " + itemId, e);
+                    addFailure(1, clazz.getSimpleName() + " " + itemId + ": " + e.getMessage());
+                }
+            }
+
+            try {
+                context.commitTransaction();
+                updated += saved;
+            } catch (GeneralException e) {
+                log.error("Unable to commit reassignment batch", e);
+                context.rollbackTransaction();
+                addFailure(saved, "Batch of " + saved + " " + clazz.getSimpleName() + " updates was rolled back: "
+                        + e.getMessage());
+            }
+
+            processed += batch.size();
+            saveProgress(context, false);
+            context.decache();
+        }
+    }
+
+    /**
+     * Record a failure message and count the items it covers
+     */
+    private void addFailure(int items, String message) {
+        failed += items;
+        if (failures.size() < MAX_FAILURE_MESSAGES) {
+            failures.add(message);
+        }
+    }
+}
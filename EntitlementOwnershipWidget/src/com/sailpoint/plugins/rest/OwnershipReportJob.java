@@ -0,0 +1,491 @@
+package com.sailpoint.plugins.rest;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import sailpoint.api.SailPointContext;
+import sailpoint.api.SailPointFactory;
+import sailpoint.object.Bundle;
+import sailpoint.object.Filter;
+import sailpoint.object.ManagedAttribute;
+import sailpoint.object.QueryOptions;
+import sailpoint.object.SailPointObject;
+import sailpoint.tools.GeneralException;
+import sailpoint.tools.JsonHelper;
+import sailpoint.tools.Util;
+
+/**
+ * Background job writing a "who owns what" report across all identities.
+ *
+ * Owners are sorted and split into ranges, and the ranges are processed in
+ * parallel on a fork-join pool. Each worker opens its own context, streams
+ * projection rows for its range into a part file, and the parts are then
+ * concatenated in order into the final report. Only the owner ids and one
+ * row per worker are held in memory at a time.
+ *
+ * Jobs and their files are local to the node that accepted the request, so
+ * the status and download endpoints must reach the same node, and a restart
+ * forgets the job. Once a report has been submitted, the plugin service
+ * sweeps the report directories periodically and removes those older than
+ * the retention period, whether or not the job that wrote them is still
+ * known, so reports left by a previous run go with the next sweep.
+ */
+public class OwnershipReportJob implements Runnable {
+
+    /**
+     * The logger to use
+     */
+    private static final Log log = LogFactory.getLog(OwnershipReportJob.class);
+
+    /**
+     * Plugin setting for the number of parallel report workers
+     */
+    public static final String SETTING_PARALLELISM = "reportParallelism";
+
+    /**
+     * Parallelism used when the setting is missing or not positive
+     */
+    public static final int DEFAULT_PARALLELISM = 4;
+
+    /**
+     * Report formats
+     */
+    public static final String FORMAT_CSV = "csv";
+    public static final String FORMAT_JSON_LINES = "jsonl.gz";
+
+    /**
+     * Job states
+     */
+    public static final String STATUS_PENDING = "pending";
+    public static final String STATUS_RUNNING = "running";
+    public static final String STATUS_COMPLETED = "completed";
+    public static final String STATUS_FAILED = "failed";
+
+    /**
+     * Number of owners in each partition
+     */
+    private static final int OWNERS_PER_PARTITION = 500;
+
+    /**
+     * Finished reports are deleted after this long
+     */
+    private static final long RETENTION_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    /**
+     * How often old report directories are swept
+     */
+    private static final long CLEANUP_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    /**
+     * Prefix of the per-job report directories
+     */
+    private static final String DIRECTORY_PREFIX = "report-";
+
+    private static final File REPORT_ROOT = new File(System.getProperty("java.io.tmpdir"),
+            "EntitlementOwnershipWidget");
+
+    /**
+     * Report columns, in output order
+     */
+    private static final List<String> COLUMNS = Arrays.asList("ownerName", "ownerDisplayName", "type",
+            "applicationName", "attributeName", "name", "displayName");
+
+    private static final String BUNDLE_PROJECTION =
+            "owner.id, owner.name, owner.displayName, name, displayName";
+
+    private static final String ENTITLEMENT_PROJECTION =
+            "owner.id, owner.name, owner.displayName, application.name, attribute, value, displayName";
+
+    private static final Map<String, OwnershipReportJob> jobs = new ConcurrentHashMap<>();
+
+    /**
+     * Reports are coordinated one at a time; each uses its own fork-join pool
+     */
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "OwnershipReport");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Set by the first submitted report so the service starts sweeping
+     */
+    private static final AtomicBoolean cleanupRequested = new AtomicBoolean();
+
+    private static volatile long lastCleanup;
+
+    private final String id = UUID.randomUUID().toString();
+    private final String launcher;
+    private final String format;
+    private final int parallelism;
+    private final Date created = new Date();
+    private final String host = Util.getHostName();
+    private final File directory;
+    private final File file;
+
+    private volatile String status = STATUS_PENDING;
+    private volatile int totalOwners;
+    private final AtomicLong processedOwners = new AtomicLong();
+    private final AtomicLong rows = new AtomicLong();
+    private volatile String error;
+    private volatile Date completed;
+
+    /**
+     * @param launcher Name of the identity starting the job
+     * @param format One of the FORMAT constants
+     * @param parallelism Number of parallel workers
+     */
+    public OwnershipReportJob(String launcher, String format, int parallelism) {
+        this.launcher = launcher;
+        this.format = format;
+        this.parallelism = parallelism > 0 ? parallelism : DEFAULT_PARALLELISM;
+        this.directory = new File(REPORT_ROOT, DIRECTORY_PREFIX + id);
+        this.file = new File(directory, "ownership-report." + format);
+    }
+
+    /**
+     * Queue a report to run in the background.
+     *
+     * @param job The job to run
+     * @return the job id
+     */
+    public static String submit(OwnershipReportJob job) {
+        cleanupRequested.set(true);
+        jobs.put(job.id, job);
+        executor.submit(job);
+        return job.id;
+    }
+
+    /**
+     * Sweep old report directories if a report has been submitted and the
+     * last sweep is older than the cleanup interval. Called from the plugin
+     * service on its own thread.
+     */
+    public static void cleanupIfDue() {
+        if (cleanupRequested.get() && System.currentTimeMillis() - lastCleanup >= CLEANUP_INTERVAL_MILLIS) {
+            lastCleanup = System.currentTimeMillis();
+            cleanup();
+        }
+    }
+
+    /**
+     * Forget jobs completed before the retention cutoff and delete every
+     * report directory older than it that no running job is writing to.
+     */
+    private static void cleanup() {
+        try {
+            long cutoff = System.currentTimeMillis() - RETENTION_MILLIS;
+            Iterator<OwnershipReportJob> it = jobs.values().iterator();
+            while (it.hasNext()) {
+                OwnershipReportJob old = it.next();
+                if (old.completed != null && old.completed.getTime() < cutoff) {
+                    it.remove();
+                }
+            }
+
+            File[] directories = REPORT_ROOT.listFiles(
+                    f -> f.isDirectory() && f.getName().startsWith(DIRECTORY_PREFIX));
+            if (directories == null) {
+                return;
+            }
+            for (File directory : directories) {
+                OwnershipReportJob job = jobs.get(directory.getName().substring(DIRECTORY_PREFIX.length()));
+                if (job == null && directory.lastModified() < cutoff) {
+                    deleteDirectory(directory);
+                }
+            }
+        } catch (RuntimeException e) {
+            log.warn("Unable to clean up ownership reports", e);
+        }
+    }
+
+    /**
+     * @param id The job id
+     * @return the job, or null if it is unknown or has expired
+     */
+    public static OwnershipReportJob get(String id) {
+        return jobs.get(id);
+    }
+
+    /**
+     * @return the finished report, or null if it is not complete
+     */
+    public File getFile() {
+        return STATUS_COMPLETED.equals(status) ? file : null;
+    }
+
+    /**
+     * @return the content type of the report
+     */
+    public String getContentType() {
+        return FORMAT_CSV.equals(format) ? "text/csv" : "application/gzip";
+    }
+
+    /**
+     * @return the progress of the job
+     */
+    public Map<String, Object> getStatus() {
+        Map<String, Object> result = new TreeMap<>();
+        result.put("id", id);
+        result.put("status", status);
+        result.put("format", format);
+        result.put("host", host);
+        result.put("totalOwners", totalOwners);
+        result.put("processedOwners", processedOwners.get());
+        result.put("rows", rows.get());
+        result.put("created", created);
+        result.put("completed", completed);
+        result.put("error", error);
+        return result;
+    }
+
+    @Override
+    public void run() {
+        status = STATUS_RUNNING;
+        ForkJoinPool pool = null;
+        try {
+            List<String> owners = findOwners();
+            totalOwners = owners.size();
+
+            List<List<String>> partitions = new ArrayList<>();
+            for (int i = 0; i < owners.size(); i += OWNERS_PER_PARTITION) {
+                partitions.add(owners.subList(i, Math.min(i + OWNERS_PER_PARTITION, owners.size())));
+            }
+
+            Files.createDirectories(directory.toPath());
+            log.info("Writing ownership report " + id + " for " + totalOwners + " owners in "
+                    + partitions.size() + " partitions");
+
+            pool = new ForkJoinPool(parallelism);
+            pool.invoke(new PartitionTask(partitions, 0, partitions.size()));
+
+            merge(partitions.size());
+            status = STATUS_COMPLETED;
+            log.info("Ownership report " + id + " completed with " + rows.get() + " rows");
+        } catch (Throwable t) {
+            log.error("Ownership report " + id + " failed", t);
+            error = t.getMessage();
+            status = STATUS_FAILED;
+        } finally {
+            boolean terminated = (pool == null) || awaitTermination(pool);
+            if (STATUS_FAILED.equals(status)) {
+                if (terminated) {
+                    deleteDirectory(directory);
+                } else {
+                    log.warn("Leaving " + directory + " for the cleanup sweep since workers are still running");
+                }
+            }
+            completed = new Date();
+        }
+    }
+
+    /**
+     * Shut the pool down and wait for every worker to finish. When one
+     * partition fails the others may still be writing their part files, so
+     * the files can only be deleted once this returns true.
+     */
+    private boolean awaitTermination(ForkJoinPool pool) {
+        pool.shutdownNow();
+        try {
+            while (!pool.awaitTermination(1, TimeUnit.MINUTES)) {
+                log.warn("Waiting for the workers of ownership report " + id + " to finish");
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * @return the sorted ids of every identity owning a role or entitlement
+     */
+    private List<String> findOwners() throws GeneralException {
+        SailPointContext context = SailPointFactory.createContext(launcher);
+        try {
+            TreeSet<String> owners = new TreeSet<>();
+            for (Class<? extends SailPointObject> clazz : Arrays.asList(Bundle.class, ManagedAttribute.class)) {
+                QueryOptions qo = new QueryOptions();
+                qo.add(Filter.notnull("owner"));
+                qo.setDistinct(true);
+                Iterator<Object[]> it = context.search(clazz, qo, "owner.id");
+                while (it.hasNext()) {
+                    owners.add((String) it.next()[0]);
+                }
+            }
+            return new ArrayList<>(owners);
+        } finally {
+            SailPointFactory.releaseContext(context);
+        }
+    }
+
+    /**
+     * Splits the partitions in half until a single partition remains,
+     * then writes that partition to its part file.
+     */
+    private class PartitionTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<List<String>> partitions;
+        private final int from;
+        private final int to;
+
+        PartitionTask(List<List<String>> partitions, int from, int to) {
+            this.partitions = partitions;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new PartitionTask(partitions, from, mid), new PartitionTask(partitions, mid, to));
+            } else if (to > from) {
+                try {
+                    writePartition(from, partitions.get(from));
+                } catch (Exception e) {
+                    throw new RuntimeException("Unable to write report partition " + from, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stream every role and entitlement of one owner range into its part file
+     * using a context owned by this worker.
+     */
+    private void writePartition(int index, List<String> owners) throws GeneralException, IOException {
+        SailPointContext context = SailPointFactory.createContext(launcher);
+        try (Writer writer = openWriter(partFile(index))) {
+            // Match the exact owners of the range rather than an id interval so
+            // database collation can never move rows between partitions
+            Filter range = Filter.in("owner.id", owners);
+
+            QueryOptions qo = new QueryOptions();
+            qo.add(range);
+            qo.addOrdering("owner.id", true);
+            Iterator<Object[]> it = context.search(Bundle.class, qo, BUNDLE_PROJECTION);
+            while (it.hasNext()) {
+                Object[] row = it.next();
+                writeRow(writer, row[1], row[2], "bundle", "IdentityIQ", "assignedRoles", row[3], row[4]);
+            }
+
+            qo = new QueryOptions();
+            qo.add(range);
+            qo.addOrdering("owner.id", true);
+            it = context.search(ManagedAttribute.class, qo, ENTITLEMENT_PROJECTION);
+            while (it.hasNext()) {
+                Object[] row = it.next();
+                writeRow(writer, row[1], row[2], "managedAttribute", row[3], row[4], row[5], row[6]);
+            }
+
+            processedOwners.addAndGet(owners.size());
+        } finally {
+            SailPointFactory.releaseContext(context);
+        }
+    }
+
+    private void writeRow(Writer writer, Object... values) throws IOException {
+        if (FORMAT_CSV.equals(format)) {
+            for (int i = 0; i < values.length; i++) {
+                if (i > 0) {
+                    writer.write(',');
+                }
+                writer.write(csvEscape(values[i]));
+            }
+        } else {
+            Map<String, Object> row = new LinkedHashMap<>();
+            for (int i = 0; i < values.length; i++) {
+                row.put(COLUMNS.get(i), values[i]);
+            }
+            writer.write(JsonHelper.toJson(row));
+        }
+        writer.write('\n');
+        rows.incrementAndGet();
+    }
+
+    /**
+     * Concatenate the part files in partition order. Gzip parts are complete
+     * gzip members, and concatenated members form a valid gzip stream.
+     */
+    private void merge(int partitions) throws IOException {
+        try (OutputStream out = Files.newOutputStream(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            if (FORMAT_CSV.equals(format)) {
+                out.write((String.join(",", COLUMNS) + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+            for (int i = 0; i < partitions; i++) {
+                File part = partFile(i);
+                Files.copy(part.toPath(), out);
+                Files.delete(part.toPath());
+            }
+        }
+    }
+
+    private Writer openWriter(File part) throws IOException {
+        OutputStream out = Files.newOutputStream(part.toPath());
+        if (FORMAT_JSON_LINES.equals(format)) {
+            out = new GZIPOutputStream(out, 64 * 1024);
+        }
+        return new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 64 * 1024);
+    }
+
+    private File partFile(int index) {
+        return new File(directory, String.format("part-%06d", index));
+    }
+
+    private static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (!f.delete()) {
+                    log.warn("Unable to delete " + f);
+                }
+            }
+        }
+        if (directory.exists() && !directory.delete()) {
+            log.warn("Unable to delete " + directory);
+        }
+    }
+
+    private static String csvEscape(Object value) {
+        if (value == null) {
+            return "";
+        }
+        String s = String.valueOf(value);
+        if (s.indexOf(',') >= 0 || s.indexOf('"') >= 0 || s.indexOf('\n') >= 0 || s.indexOf('\r') >= 0) {
+            return "\"" + s.replace("\"", "\"\"") + "\"";
+        }
+        return s;
+    }
+}
@@ -0,0 +1,656 @@
+package com.sailpoint.plugins.rest;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import sailpoint.api.SailPointContext;
+import sailpoint.object.Bundle;
+import sailpoint.object.Filter;
+import sailpoint.object.ManagedAttribute;
+import sailpoint.object.QueryOptions;
+import sailpoint.tools.GeneralException;
+
+/**
+ * Read-only, on-disk snapshot of owner to item rows, used to keep serving
+ * the widget when the live query is too slow.
+ *
+ * The plugin service writes each snapshot to a new generation file and
+ * then switches readers to it. A mapped file is never replaced in place,
+ * which Windows would refuse, and older generations are deleted by later
+ * writes once nothing maps them. Each owner has a section of Bundle rows and a section of
+ * ManagedAttribute rows, each sorted by id, which is the order the live
+ * queries page in, so a page read from the snapshot covers the same items
+ * as the live page did when the snapshot was taken. The rows are followed
+ * by a fixed width index of owners sorted by id. Reads go through a memory
+ * mapped buffer: the owner is found by binary search over the index, rows
+ * before the requested page are skipped by their length prefixes, and only
+ * the rows on the page are decoded.
+ *
+ * Layout:
+ * <pre>
+ *   header: magic(int) version(int) created(long) ownerCount(int) indexOffset(long)
+ *   rows:   type(byte) flag(byte) then id, name, displayName, applicationName,
+ *           attributeName as unsigned short length + UTF-8 bytes
+ *   index:  ownerCount x [ownerId (64 bytes, zero padded)
+ *           bundleOffset(long) bundleCount(int) entitlementOffset(long) entitlementCount(int)]
+ * </pre>
+ */
+public class OwnershipSnapshot {
+
+    /**
+     * The logger to use
+     */
+    private static final Log log = LogFactory.getLog(OwnershipSnapshot.class);
+
+    /**
+     * Plugin settings
+     */
+    public static final String SETTING_FALLBACK_ENABLED = "snapshotFallbackEnabled";
+    public static final String SETTING_DEADLINE_MILLIS = "liveQueryDeadlineMillis";
+    public static final String SETTING_INTERVAL_MINUTES = "snapshotIntervalMinutes";
+
+    /**
+     * Defaults used when a setting is missing or not positive
+     */
+    public static final int DEFAULT_DEADLINE_MILLIS = 3000;
+    public static final int DEFAULT_INTERVAL_MINUTES = 60;
+
+    /**
+     * Row types
+     */
+    public static final byte TYPE_BUNDLE = 0;
+    public static final byte TYPE_MANAGED_ATTRIBUTE = 1;
+
+    private static final int MAGIC = 0x454F534E;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 4 + 8;
+    private static final int OWNER_ID_BYTES = 64;
+    private static final int SECTION_SIZE = 8 + 4;
+    private static final int INDEX_ENTRY_SIZE = OWNER_ID_BYTES + 2 * SECTION_SIZE;
+    private static final int MAX_FIELD_BYTES = 0xFFFF;
+
+    /**
+     * Number of owners whose rows are loaded and sorted at a time
+     */
+    private static final int OWNERS_PER_CHUNK = 500;
+
+    private static final String BUNDLE_PROJECTION = "owner.id, id, name, displayName, disabled";
+
+    private static final String ENTITLEMENT_PROJECTION =
+            "owner.id, id, value, displayName, application.name, attribute, requestable";
+
+    private static final Comparator<Row> ROW_ORDER = Comparator.comparing((Row row) -> row.id);
+
+    /**
+     * Generation files are named FILE_PREFIX + created time + FILE_SUFFIX
+     */
+    private static final String FILE_PREFIX = "ownership-snapshot-";
+    private static final String FILE_SUFFIX = ".bin";
+
+    /**
+     * Single file written by earlier versions, deleted with old generations
+     */
+    private static final String LEGACY_FILE = "ownership-snapshot.bin";
+
+    private final File directory;
+    private final Filter bundleFilter;
+    private final AtomicBoolean writeRequested = new AtomicBoolean();
+    private boolean loaded;
+
+    /**
+     * The currently mapped snapshot, replaced after each write
+     */
+    private volatile View current;
+
+    /**
+     * @param directory Where the snapshot generations are stored
+     * @param bundleFilter Restricts which Bundles are included, may be null
+     */
+    public OwnershipSnapshot(File directory, Filter bundleFilter) {
+        this.directory = directory;
+        this.bundleFilter = bundleFilter;
+    }
+
+    /**
+     * Write a new snapshot if there is none, the current one is older than
+     * the interval, or a write was requested. Called from the plugin
+     * service on its own thread.
+     *
+     * @param context The service's context
+     * @param intervalMinutes How often the snapshot is rewritten
+     */
+    public void writeIfDue(SailPointContext context, int intervalMinutes) {
+        View view = view();
+        long interval = TimeUnit.MINUTES.toMillis(intervalMinutes > 0 ? intervalMinutes : DEFAULT_INTERVAL_MINUTES);
+        if (writeRequested.getAndSet(false) || view == null
+                || System.currentTimeMillis() - view.created >= interval) {
+            write(context);
+        }
+    }
+
+    /**
+     * Rewrite the snapshot on the next service run, e.g. after ownership
+     * changed in bulk.
+     */
+    public void requestWrite() {
+        writeRequested.set(true);
+    }
+
+    /**
+     * The current snapshot. Read every section of a page from the same view
+     * so the page never mixes two snapshots.
+     *
+     * @return the current snapshot, or null if none is available
+     */
+    public View view() {
+        if (current == null) {
+            loadLatest();
+        }
+        return current;
+    }
+
+    /**
+     * Map the newest generation left by a previous run, once, so reads can
+     * be served before the first write finishes
+     */
+    private synchronized void loadLatest() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+
+        File latest = null;
+        long latestCreated = -1;
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                long created = generation(f);
+                if (created > latestCreated) {
+                    latest = f;
+                    latestCreated = created;
+                }
+            }
+        }
+        if (latest != null && current == null) {
+            try {
+                current = map(latest);
+            } catch (IOException e) {
+                log.warn("Ignoring unreadable ownership snapshot " + latest, e);
+            }
+        }
+    }
+
+    /**
+     * @return the created time of a generation file, or -1 if the file is not one
+     */
+    private static long generation(File f) {
+        String name = f.getName();
+        if (!name.startsWith(FILE_PREFIX) || !name.endsWith(FILE_SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(FILE_PREFIX.length(), name.length() - FILE_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Case-insensitive substring match used to filter snapshot rows the way
+     * the live queries filter with like.
+     *
+     * @param value The value to test, may be null
+     * @param query The search term, null or empty matches everything
+     * @return true if the value contains the query
+     */
+    public static boolean matches(String value, String query) {
+        if (query == null || query.isEmpty()) {
+            return true;
+        }
+        return value != null && value.toLowerCase(Locale.ROOT).contains(query.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Binary search the owner index
+     *
+     * @return the index entry of the owner, or -1 if it has no rows
+     */
+    private static int findOwner(View view, ByteBuffer buffer, String ownerId) {
+        int low = 0;
+        int high = view.ownerCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = readOwnerId(buffer, view.indexOffset + mid * INDEX_ENTRY_SIZE).compareTo(ownerId);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private static String readOwnerId(ByteBuffer buffer, int offset) {
+        int length = 0;
+        while (length < OWNER_ID_BYTES && buffer.get(offset + length) != 0) {
+            length++;
+        }
+        return decode(buffer, offset, length);
+    }
+
+    private static void skipRow(ByteBuffer buffer) {
+        buffer.position(buffer.position() + 2);
+        for (int i = 0; i < 5; i++) {
+            int length = buffer.getShort() & 0xFFFF;
+            buffer.position(buffer.position() + length);
+        }
+    }
+
+    private static Row decodeRow(ByteBuffer buffer) {
+        Row row = new Row();
+        row.type = buffer.get();
+        row.flag = buffer.get() != 0;
+        row.id = readString(buffer);
+        row.name = readString(buffer);
+        row.displayName = readString(buffer);
+        row.applicationName = readString(buffer);
+        row.attributeName = readString(buffer);
+        return row;
+    }
+
+    /**
+     * Decode a length prefixed string straight out of the mapped buffer
+     */
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getShort() & 0xFFFF;
+        int offset = buffer.position();
+        buffer.position(offset + length);
+        return (length == 0) ? null : decode(buffer, offset, length);
+    }
+
+    private static String decode(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(offset + length).position(offset);
+        return StandardCharsets.UTF_8.decode(slice).toString();
+    }
+
+    private void write(SailPointContext context) {
+        long started = System.currentTimeMillis();
+        File file = new File(directory, FILE_PREFIX + started + FILE_SUFFIX);
+        // A unique temp name so no other writer can interleave with this one
+        File temp = new File(directory, FILE_PREFIX + started + "-" + UUID.randomUUID() + ".tmp");
+        try {
+            Files.createDirectories(directory.toPath());
+
+            List<String> owners = findOwners(context);
+            // Section offsets and counts per owner, bundles at [0] and entitlements at [1]
+            long[][] offsets = new long[owners.size()][2];
+            int[][] counts = new int[owners.size()][2];
+
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(temp), 64 * 1024))) {
+                // Header is written again once the index offset is known
+                out.write(new byte[HEADER_SIZE]);
+                long position = HEADER_SIZE;
+
+                for (int i = 0; i < owners.size(); i += OWNERS_PER_CHUNK) {
+                    List<String> chunk = owners.subList(i, Math.min(i + OWNERS_PER_CHUNK, owners.size()));
+                    Map<String, List<Row>> rows = loadRows(context, chunk);
+                    for (int j = 0; j < chunk.size(); j++) {
+                        List<Row> ownerRows = rows.getOrDefault(chunk.get(j), new ArrayList<>());
+                        ownerRows.sort(ROW_ORDER);
+                        for (int section = 0; section < 2; section++) {
+                            boolean bundles = (section == 0);
+                            offsets[i + j][section] = position;
+                            for (Row row : ownerRows) {
+                                if (row.isBundle() == bundles) {
+                                    position += writeRow(out, row);
+                                    counts[i + j][section]++;
+                                }
+                            }
+                        }
+                    }
+                    context.decache();
+                }
+
+                long indexOffset = position;
+                if (indexOffset + (long) owners.size() * INDEX_ENTRY_SIZE > Integer.MAX_VALUE) {
+                    throw new IOException("Ownership snapshot would exceed 2GB, not writing it");
+                }
+                for (int i = 0; i < owners.size(); i++) {
+                    byte[] id = Arrays.copyOf(owners.get(i).getBytes(StandardCharsets.UTF_8), OWNER_ID_BYTES);
+                    out.write(id);
+                    for (int section = 0; section < 2; section++) {
+                        out.writeLong(offsets[i][section]);
+                        out.writeInt(counts[i][section]);
+                    }
+                }
+                out.flush();
+
+                try (RandomAccessFile raf = new RandomAccessFile(temp, "rw")) {
+                    raf.writeInt(MAGIC);
+                    raf.writeInt(VERSION);
+                    raf.writeLong(started);
+                    raf.writeInt(owners.size());
+                    raf.writeLong(indexOffset);
+                }
+            }
+
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            View previous = current;
+            current = map(file);
+            log.info("Wrote ownership snapshot for " + owners.size() + " owners in "
+                    + (System.currentTimeMillis() - started) + "ms");
+            deleteOldGenerations(file, previous);
+        } catch (Exception e) {
+            log.error("Unable to write ownership snapshot", e);
+            if (temp.exists() && !temp.delete()) {
+                log.warn("Unable to delete " + temp);
+            }
+        }
+    }
+
+    /**
+     * Delete every generation except the new one and the one it replaced,
+     * which requests may still be reading. A file that is still mapped
+     * cannot be deleted on Windows; it is retried on the next write.
+     */
+    private void deleteOldGenerations(File latest, View previous) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File f : files) {
+            boolean old = generation(f) >= 0 || LEGACY_FILE.equals(f.getName());
+            if (!old || f.equals(latest) || (previous != null && f.equals(previous.file))) {
+                continue;
+            }
+            if (!f.delete() && log.isDebugEnabled()) {
+                log.debug("Unable to delete old ownership snapshot " + f + ", retrying on the next write");
+            }
+        }
+    }
+
+    /**
+     * @return the sorted ids of every identity owning an item in the snapshot
+     */
+    private List<String> findOwners(SailPointContext context) throws GeneralException {
+        TreeSet<String> owners = new TreeSet<>();
+
+        QueryOptions qo = new QueryOptions();
+        qo.add(Filter.notnull("owner"));
+        if (bundleFilter != null) {
+            qo.add(bundleFilter);
+        }
+        qo.setDistinct(true);
+        Iterator<Object[]> it = context.search(Bundle.class, qo, "owner.id");
+        while (it.hasNext()) {
+            owners.add((String) it.next()[0]);
+        }
+
+        qo = new QueryOptions();
+        qo.add(Filter.notnull("owner"));
+        qo.setDistinct(true);
+        it = context.search(ManagedAttribute.class, qo, "owner.id");
+        while (it.hasNext()) {
+            owners.add((String) it.next()[0]);
+        }
+
+        List<String> sorted = new ArrayList<>();
+        for (String owner : owners) {
+            if (owner.getBytes(StandardCharsets.UTF_8).length <= OWNER_ID_BYTES) {
+                sorted.add(owner);
+            } else {
+                log.warn("Skipping owner with an id too long for the snapshot index: " + owner);
+            }
+        }
+        return sorted;
+    }
+
+    /**
+     * Load the rows of one chunk of owners with projection queries
+     */
+    private Map<String, List<Row>> loadRows(SailPointContext context, List<String> owners) throws GeneralException {
+        Map<String, List<Row>> rows = new HashMap<>();
+
+        QueryOptions qo = new QueryOptions();
+        qo.add(Filter.in("owner.id", owners));
+        if (bundleFilter != null) {
+            qo.add(bundleFilter);
+        }
+        Iterator<Object[]> it = context.search(Bundle.class, qo, BUNDLE_PROJECTION);
+        while (it.hasNext()) {
+            Object[] result = it.next();
+            Row row = new Row();
+            row.type = TYPE_BUNDLE;
+            row.id = (String) result[1];
+            row.name = (String) result[2];
+            row.displayName = (String) result[3];
+            row.flag = Boolean.TRUE.equals(result[4]);
+            row.applicationName = "IdentityIQ";
+            row.attributeName = "assignedRoles";
+            rows.computeIfAbsent((String) result[0], key -> new ArrayList<>()).add(row);
+        }
+
+        qo = new QueryOptions();
+        qo.add(Filter.in("owner.id", owners));
+        it = context.search(ManagedAttribute.class, qo, ENTITLEMENT_PROJECTION);
+        while (it.hasNext()) {
+            Object[] result = it.next();
+            Row row = new Row();
+            row.type = TYPE_MANAGED_ATTRIBUTE;
+            row.id = (String) result[1];
+            row.name = (String) result[2];
+            row.displayName = (String) result[3];
+            row.applicationName = (String) result[4];
+            row.attributeName = (String) result[5];
+            row.flag = Boolean.TRUE.equals(result[6]);
+            rows.computeIfAbsent((String) result[0], key -> new ArrayList<>()).add(row);
+        }
+
+        return rows;
+    }
+
+    /**
+     * @return the number of bytes written
+     */
+    private static int writeRow(DataOutputStream out, Row row) throws IOException {
+        int size = 2;
+        out.writeByte(row.type);
+        out.writeByte(row.flag ? 1 : 0);
+        for (String value : new String[] { row.id, row.name, row.displayName, row.applicationName, row.attributeName }) {
+            byte[] bytes = (value != null) ? value.getBytes(StandardCharsets.UTF_8) : new byte[0];
+            int length = Math.min(bytes.length, MAX_FIELD_BYTES);
+            out.writeShort(length);
+            out.write(bytes, 0, length);
+            size += 2 + length;
+        }
+        return size;
+    }
+
+    private static View map(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                throw new IOException("Not an ownership snapshot: " + file);
+            }
+            View view = new View();
+            view.file = file;
+            view.mapping = buffer;
+            view.created = buffer.getLong(8);
+            view.ownerCount = buffer.getInt(16);
+            view.indexOffset = (int) buffer.getLong(20);
+            return view;
+        }
+    }
+
+    /**
+     * One mapped snapshot file. The mapping stays valid after the channel is
+     * closed and until the view is no longer referenced.
+     */
+    public static class View {
+        private File file;
+        private MappedByteBuffer mapping;
+        private long created;
+        private int ownerCount;
+        private int indexOffset;
+
+        /**
+         * @return when the snapshot was taken
+         */
+        public long getCreated() {
+            return created;
+        }
+
+        /**
+         * Read one page of an owner's Bundles or ManagedAttributes, in id order.
+         *
+         * @param ownerId Id of the owner
+         * @param bundles True to read the Bundle section, false for ManagedAttributes
+         * @param filter Optional filter the rows must match, null for all rows
+         * @param start Index of the first matching row to return
+         * @param limit Maximum number of rows to return
+         * @return The page
+         */
+        public Page read(String ownerId, boolean bundles, Predicate<Row> filter, int start, int limit) {
+            Page page = new Page(created);
+            ByteBuffer buffer = mapping.duplicate();
+            int entry = findOwner(this, buffer, ownerId);
+            if (entry < 0) {
+                return page;
+            }
+
+            int sectionOffset = indexOffset + entry * INDEX_ENTRY_SIZE + OWNER_ID_BYTES
+                    + (bundles ? 0 : SECTION_SIZE);
+            buffer.position((int) buffer.getLong(sectionOffset));
+            int rowCount = buffer.getInt(sectionOffset + 8);
+
+            if (filter == null) {
+                // Without a filter only the rows on the page are decoded
+                page.total = rowCount;
+                for (int i = 0; i < Math.min(start, rowCount); i++) {
+                    skipRow(buffer);
+                }
+                for (int i = start; i < rowCount && page.rows.size() < limit; i++) {
+                    page.rows.add(decodeRow(buffer));
+                }
+            } else {
+                for (int i = 0; i < rowCount; i++) {
+                    Row row = decodeRow(buffer);
+                    if (filter.test(row)) {
+                        if (page.total >= start && page.rows.size() < limit) {
+                            page.rows.add(row);
+                        }
+                        page.total++;
+                    }
+                }
+            }
+            return page;
+        }
+    }
+
+    /**
+     * One page of snapshot rows
+     */
+    public static class Page {
+        private final long created;
+        private final List<Row> rows = new ArrayList<>();
+        private int total;
+
+        Page(long created) {
+            this.created = created;
+        }
+
+        /**
+         * @return when the snapshot was taken
+         */
+        public long getCreated() {
+            return created;
+        }
+
+        /**
+         * @return the rows on this page
+         */
+        public List<Row> getRows() {
+            return rows;
+        }
+
+        /**
+         * @return the number of the owner's rows in the section matching the filter
+         */
+        public int getTotal() {
+            return total;
+        }
+    }
+
+    /**
+     * A single owned item. The flag is the requestable flag of a
+     * ManagedAttribute or the disabled flag of a Bundle.
+     */
+    public static class Row {
+        private byte type;
+        private boolean flag;
+        private String id;
+        private String name;
+        private String displayName;
+        private String applicationName;
+        private String attributeName;
+
+        public boolean isBundle() {
+            return type == TYPE_BUNDLE;
+        }
+
+        public boolean getFlag() {
+            return flag;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getDisplayName() {
+            return displayName;
+        }
+
+        public String getApplicationName() {
+            return applicationName;
+        }
+
+        public String getAttributeName() {
+            return attributeName;
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package com.sailpoint.plugins.rest;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Admission control for the widget endpoints. Each identity gets its own
+ * token bucket per endpoint, and a global cap limits how many database
+ * backed requests may run at once. All state is updated with CAS so the
+ * request path never blocks on a lock.
+ */
+public class RequestThrottle {
+
+    /**
+     * The logger to use
+     */
+    private static final Log log = LogFactory.getLog(RequestThrottle.class);
+
+    /**
+     * HTTP status returned when a request is rejected
+     */
+    public static final int STATUS_TOO_MANY_REQUESTS = 429;
+
+    /**
+     * Plugin setting names
+     */
+    public static final String SETTING_REQUESTS_PER_MINUTE = "rateLimitRequestsPerMinute";
+    public static final String SETTING_BURST = "rateLimitBurst";
+    public static final String SETTING_MAX_CONCURRENT = "maxConcurrentQueries";
+
+    /**
+     * Defaults used when a setting is missing or not positive
+     */
+    public static final int DEFAULT_REQUESTS_PER_MINUTE = 120;
+    public static final int DEFAULT_BURST = 20;
+    public static final int DEFAULT_MAX_CONCURRENT = 10;
+
+    /**
+     * Idle buckets are swept once there are more than this many
+     */
+    private static final int SWEEP_THRESHOLD = 10000;
+
+    /**
+     * A bucket untouched for this long is dropped during a sweep
+     */
+    private static final long IDLE_NANOS = TimeUnit.MINUTES.toNanos(10);
+
+    /**
+     * Minimum time between sweeps, and between rejection warnings
+     */
+    private static final long SWEEP_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+    private static final long WARN_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private static final RequestThrottle instance = new RequestThrottle();
+
+    private final ConcurrentHashMap<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final ConcurrentHashMap<String, AtomicLong> rateRejections = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, AtomicLong> concurrencyRejections = new ConcurrentHashMap<>();
+    private final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+    private final AtomicLong lastWarning = new AtomicLong(System.nanoTime() - WARN_INTERVAL_NANOS);
+
+    /**
+     * @return the shared throttle for this plugin
+     */
+    public static RequestThrottle getInstance() {
+        return instance;
+    }
+
+    /**
+     * Admit a request, or reject it with a 429 response carrying a
+     * Retry-After header.
+     *
+     * @param identity Name of the calling identity
+     * @param endpoint Name of the endpoint being called
+     * @param limits The limits currently configured for the plugin
+     * @return A permit that must be closed when the request completes
+     * @throws WebApplicationException if the request is rejected
+     */
+    public Permit acquire(String identity, String endpoint, Limits limits) {
+        TokenBucket bucket = buckets.computeIfAbsent(identity + "|" + endpoint, key -> new TokenBucket());
+        long waitNanos = bucket.tryConsume(limits);
+        if (waitNanos > 0) {
+            counter(rateRejections, endpoint).incrementAndGet();
+            logRejection("Rate limit exceeded for " + identity + " on " + endpoint);
+            throw reject(TimeUnit.NANOSECONDS.toSeconds(waitNanos) + 1);
+        }
+
+        int current;
+        do {
+            current = inFlight.get();
+            if (current >= limits.maxConcurrent) {
+                // The caller is not at fault for a busy server, so give the token back
+                bucket.refund(limits);
+                counter(concurrencyRejections, endpoint).incrementAndGet();
+                logRejection("Concurrency limit of " + limits.maxConcurrent + " reached, rejecting "
+                        + identity + " on " + endpoint);
+                throw reject(1);
+            }
+        } while (!inFlight.compareAndSet(current, current + 1));
+
+        if (buckets.size() > SWEEP_THRESHOLD) {
+            long now = System.nanoTime();
+            long last = lastSweep.get();
+            if (now - last > SWEEP_INTERVAL_NANOS && lastSweep.compareAndSet(last, now)) {
+                sweep();
+            }
+        }
+
+        return new Permit(inFlight);
+    }
+
+    /**
+     * @return rejection counters and current load, for the metrics endpoint
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new TreeMap<>();
+        metrics.put("inFlight", inFlight.get());
+        metrics.put("trackedBuckets", buckets.size());
+        metrics.put("rateLimitRejections", snapshot(rateRejections));
+        metrics.put("concurrencyRejections", snapshot(concurrencyRejections));
+        return metrics;
+    }
+
+    private void sweep() {
+        long cutoff = System.nanoTime() - IDLE_NANOS;
+        buckets.values().removeIf(bucket -> bucket.state.get().lastRefill < cutoff);
+    }
+
+    /**
+     * Log a rejection at debug, and at warn at most once a minute so a
+     * runaway client cannot flood the log. The counters hold the totals.
+     */
+    private void logRejection(String message) {
+        long now = System.nanoTime();
+        long last = lastWarning.get();
+        if (now - last > WARN_INTERVAL_NANOS && lastWarning.compareAndSet(last, now)) {
+            log.warn(message + " (further rejections are logged at debug for the next minute)");
+        } else if (log.isDebugEnabled()) {
+            log.debug(message);
+        }
+    }
+
+    private static AtomicLong counter(ConcurrentHashMap<String, AtomicLong> counters, String endpoint) {
+        return counters.computeIfAbsent(endpoint, key -> new AtomicLong());
+    }
+
+    private static Map<String, Long> snapshot(ConcurrentHashMap<String, AtomicLong> counters) {
+        Map<String, Long> values = new TreeMap<>();
+        counters.forEach((endpoint, count) -> values.put(endpoint, count.get()));
+        return values;
+    }
+
+    private static WebApplicationException reject(long retryAfterSeconds) {
+        Response response = Response.status(STATUS_TOO_MANY_REQUESTS)
+                .header("Retry-After", String.valueOf(retryAfterSeconds))
+                .type(MediaType.TEXT_PLAIN)
+                .entity("Too many requests, retry after " + retryAfterSeconds + " seconds")
+                .build();
+        return new WebApplicationException(response);
+    }
+
+    /**
+     * Configured limits, read from the plugin settings for each request so
+     * changes take effect without a restart.
+     */
+    public static class Limits {
+        final double tokensPerNano;
+        final int burst;
+        final int maxConcurrent;
+
+        /**
+         * @param requestsPerMinute Sustained requests allowed per identity and endpoint
+         * @param burst Requests allowed in a burst
+         * @param maxConcurrent Database backed requests allowed to run at once
+         */
+        public Limits(int requestsPerMinute, int burst, int maxConcurrent) {
+            int rate = requestsPerMinute > 0 ? requestsPerMinute : DEFAULT_REQUESTS_PER_MINUTE;
+            this.tokensPerNano = rate / (double) TimeUnit.MINUTES.toNanos(1);
+            this.burst = burst > 0 ? burst : DEFAULT_BURST;
+            this.maxConcurrent = maxConcurrent > 0 ? maxConcurrent : DEFAULT_MAX_CONCURRENT;
+        }
+    }
+
+    /**
+     * Releases the concurrency slot held by an admitted request. The slot
+     * can be handed to another thread that finishes the work, and is only
+     * ever released once.
+     */
+    public static class Permit implements AutoCloseable {
+        private final AtomicInteger inFlight;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        Permit(AtomicInteger inFlight) {
+            this.inFlight = inFlight;
+        }
+
+        /**
+         * Move the slot to a new permit, e.g. one closed by a worker thread,
+         * so closing this permit no longer releases it.
+         *
+         * @return the permit now holding the slot
+         * @throws IllegalStateException if this permit is already closed
+         */
+        public Permit transfer() {
+            if (!closed.compareAndSet(false, true)) {
+                throw new IllegalStateException("Permit is already closed");
+            }
+            return new Permit(inFlight);
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                inFlight.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Token bucket whose state is swapped atomically
+     */
+    private static class TokenBucket {
+        final AtomicReference<BucketState> state =
+                new AtomicReference<>(new BucketState(-1, System.nanoTime()));
+
+        /**
+         * @return 0 if a token was taken, otherwise nanoseconds until one is available
+         */
+        long tryConsume(Limits limits) {
+            while (true) {
+                BucketState current = state.get();
+                long now = System.nanoTime();
+                // A new bucket starts full
+                double tokens = current.tokens < 0 ? limits.burst
+                        : Math.min(limits.burst, current.tokens + (now - current.lastRefill) * limits.tokensPerNano);
+                if (tokens < 1) {
+                    return (long) Math.ceil((1 - tokens) / limits.tokensPerNano);
+                }
+                if (state.compareAndSet(current, new BucketState(tokens - 1, now))) {
+                    return 0;
+                }
+            }
+        }
+
+        /**
+         * Return a token taken by a request that was rejected for another reason
+         */
+        void refund(Limits limits) {
+            while (true) {
+                BucketState current = state.get();
+                BucketState refunded = new BucketState(Math.min(limits.burst, current.tokens + 1), current.lastRefill);
+                if (state.compareAndSet(current, refunded)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private static class BucketState {
+        final double tokens;
+        final long lastRefill;
+
+        BucketState(double tokens, long lastRefill) {
+            this.tokens = tokens;
+            this.lastRefill = lastRefill;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.sailpoint.plugins.rest.vo;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import sailpoint.integration.ListResult;
+
+/**
+ * A ListResult served from the ownership snapshot instead of a live query
+ */
+public class StaleListResult extends ListResult {
+
+    private Date snapshotDate;
+
+    /**
+     * @param objects the rows on the page
+     * @param count the total number of rows
+     * @param snapshotDate when the snapshot was taken
+     */
+    public StaleListResult(List<Map<String, Object>> objects, int count, Date snapshotDate) {
+        super(objects, count);
+        this.snapshotDate = snapshotDate;
+    }
+
+    /**
+     * @return always true, the rows may be out of date
+     */
+    public boolean isStale() {
+        return true;
+    }
+
+    /**
+     * @return when the snapshot was taken
+     */
+    public Date getSnapshotDate() {
+        return snapshotDate;
+    }
+
+}
@@ -0,0 +1,59 @@
+package com.sailpoint.plugins.service;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import sailpoint.api.SailPointContext;
+import sailpoint.server.BasePluginService;
+import sailpoint.tools.GeneralException;
+
+import com.sailpoint.plugins.rest.EntitlementOwnershipResource;
+import com.sailpoint.plugins.rest.EntitlementRoleIndex;
+import com.sailpoint.plugins.rest.LiveQueryGuard;
+import com.sailpoint.plugins.rest.OwnershipReportJob;
+import com.sailpoint.plugins.rest.OwnershipSnapshot;
+
+/**
+ * Plugin service running the widget's background maintenance. IdentityIQ
+ * starts and stops it with the plugin, so this work never outlives the
+ * plugin classloader. The service definition runs it every minute on every
+ * host; each task decides for itself whether it is due.
+ */
+public class EntitlementOwnershipService extends BasePluginService {
+
+    /**
+     * The logger to use
+     */
+    private static final Log log = LogFactory.getLog(EntitlementOwnershipService.class);
+
+    @Override
+    public String getPluginName() {
+        return "EntitlementOwnershipWidget";
+    }
+
+    @Override
+    public void execute(SailPointContext context) throws GeneralException {
+        if (log.isDebugEnabled()) {
+            log.debug("Running entitlement ownership maintenance");
+        }
+
+        EntitlementRoleIndex.getInstance().refreshIfStale(context,
+                getSettingInt(EntitlementRoleIndex.SETTING_REFRESH_SECONDS));
+        OwnershipReportJob.cleanupIfDue();
+
+        if (getSettingBool(OwnershipSnapshot.SETTING_FALLBACK_ENABLED)) {
+            EntitlementOwnershipResource.getSnapshot().writeIfDue(context,
+                    getSettingInt(OwnershipSnapshot.SETTING_INTERVAL_MINUTES));
+        }
+    }
+
+    /**
+     * Stop the live query workers along with the service so none outlive
+     * the plugin classloader
+     */
+    @Override
+    public void terminate() {
+        LiveQueryGuard.shutdownAll();
+        super.terminate();
+    }
+}
@@ -7,6 +7,7 @@ import org.apache.commons.logging.LogFactory;
 
 import sailpoint.api.SailPointContext;
 import sailpoint.api.SailPointFactory;
+import sailpoint.authorization.CapabilityAuthorizer;
 import sailpoint.object.ManagedAttribute;
 import sailpoint.object.Filter;
 import sailpoint.object.Identity;
@@ -14,13 +15,20 @@ import sailpoint.object.QueryOptions;
 import sailpoint.object.Bundle;
 import sailpoint.rest.plugin.AllowAll;
 import sailpoint.rest.plugin.BasePluginResource;
+import sailpoint.rest.plugin.Deferred;
 import sailpoint.tools.GeneralException;
 import sailpoint.web.plugin.config.PluginRegistry;
 
 import javax.ws.rs.*;
 import javax.ws.rs.core.MediaType;
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
 /**
  * EntitlementRolesResource provides REST API endpoints to retrieve
@@ -31,6 +39,19 @@ import java.util.List;
 public class EntitlementRolesResource extends BasePluginResource {
 
     private static Log log = LogFactory.getLog(EntitlementRolesResource.class);
+    
+    /**
+     * On-disk snapshot served when the live owned items query misses its deadline,
+     * written by the plugin service
+     */
+    private static final OwnershipSnapshot snapshot = new OwnershipSnapshot(
+            new File(System.getProperty("java.io.tmpdir"), "MyEntitlementsandRoles"),
+            Filter.eq("type", "role"));
+    
+    /**
+     * Runs the live owned items query on a worker the request can give up on at the deadline
+     */
+    private static final LiveQueryGuard liveQueryGuard = new LiveQueryGuard("EntitlementRolesLiveQuery");
 
     /**
      * Returns a list of entitlements owned by the current user
@@ -48,14 +69,32 @@ public class EntitlementRolesResource extends BasePluginResource {
             @QueryParam("limit") @DefaultValue("25") int limit,
             @QueryParam("offset") @DefaultValue("0") int offset) throws GeneralException {
         
+        try (RequestThrottle.Permit permit = acquirePermit("owned-entitlements")) {
+            return findOwnedEntitlements(getLoggedInUserName(), getLocale(), searchTerm, limit, offset);
+        }
+    }
+    
+    /**
+     * Queries the entitlements owned by the current user
+     * @param userName Name of the current user
+     * @param locale Locale to resolve descriptions in
+     * @param searchTerm Optional search term to filter results
+     * @param limit Maximum number of results to return
+     * @param offset Pagination offset
+     * @return List of ownership results
+     * @throws GeneralException if an error occurs
+     */
+    private List<OwnershipResult> findOwnedEntitlements(String userName, Locale locale, String searchTerm,
+            int limit, int offset) throws GeneralException {
+        
         SailPointContext context = SailPointFactory.getCurrentContext();
         List<OwnershipResult> results = new ArrayList<>();
         
         try {
             // Get the current user
-            Identity currentUser = context.getObjectByName(Identity.class, getLoggedInUserName());
+            Identity currentUser = context.getObjectByName(Identity.class, userName);
             if (currentUser == null) {
-                log.error("Current user not found: " + getLoggedInUserName());
+                log.error("Current user not found: " + userName);
                 return results;
             }
             
@@ -71,20 +110,30 @@ public class EntitlementRolesResource extends BasePluginResource {
                 qo.addFilter(ownerFilter);
             }
             
-            // Set pagination
+            // Set pagination, in id order so the snapshot fallback pages the same way
             qo.setFirstRow(offset);
             qo.setMaxRows(limit);
+            qo.addOrdering("id", true);
             
             // Execute query
             List<ManagedAttribute> entitlements = context.getObjects(ManagedAttribute.class, qo);
             
+            // Resolve descriptions for the whole page in the caller's locale
+            List<String> ids = new ArrayList<>();
+            for (ManagedAttribute entitlement : entitlements) {
+                ids.add(entitlement.getId());
+            }
+            LocalizedDescriptionResolver resolver = new LocalizedDescriptionResolver(context, locale);
+            Map<String, String> descriptions = resolver.resolve(ids);
+            
             // Convert to OwnershipResult objects
-            for (Entitlement entitlement : entitlements) {
+            for (ManagedAttribute entitlement : entitlements) {
                 OwnershipResult result = new OwnershipResult();
                 result.setId(entitlement.getId());
                 result.setDisplayName(entitlement.getDisplayableName());
                 result.setApplication(entitlement.getApplication().getName());
-                result.setDescription(entitlement.getDescription());
+                String description = descriptions.get(entitlement.getId());
+                result.setDescription(description != null ? description : entitlement.getDescription());
                 result.setOwnershipType(Type.ENTITLEMENT);
                 
                 // Add additional entitlement details as needed
@@ -115,14 +164,32 @@ public class EntitlementRolesResource extends BasePluginResource {
             @QueryParam("limit") @DefaultValue("25") int limit,
             @QueryParam("offset") @DefaultValue("0") int offset) throws GeneralException {
         
+        try (RequestThrottle.Permit permit = acquirePermit("owned-roles")) {
+            return findOwnedRoles(getLoggedInUserName(), getLocale(), searchTerm, limit, offset);
+        }
+    }
+    
+    /**
+     * Queries the roles owned by the current user
+     * @param userName Name of the current user
+     * @param locale Locale to resolve descriptions in
+     * @param searchTerm Optional search term to filter results
+     * @param limit Maximum number of results to return
+     * @param offset Pagination offset
+     * @return List of ownership results
+     * @throws GeneralException if an error occurs
+     */
+    private List<OwnershipResult> findOwnedRoles(String userName, Locale locale, String searchTerm,
+            int limit, int offset) throws GeneralException {
+        
         SailPointContext context = SailPointFactory.getCurrentContext();
         List<OwnershipResult> results = new ArrayList<>();
         
         try {
             // Get the current user
-            Identity currentUser = context.getObjectByName(Identity.class, getLoggedInUserName());
+            Identity currentUser = context.getObjectByName(Identity.class, userName);
             if (currentUser == null) {
-                log.error("Current user not found: " + getLoggedInUserName());
+                log.error("Current user not found: " + userName);
                 return results;
             }
             
@@ -142,19 +209,29 @@ public class EntitlementRolesResource extends BasePluginResource {
             
             qo.addFilter(combinedFilter);
             
-            // Set pagination
+            // Set pagination, in id order so the snapshot fallback pages the same way
             qo.setFirstRow(offset);
             qo.setMaxRows(limit);
+            qo.addOrdering("id", true);
             
             // Execute query
             List<Bundle> roles = context.getObjects(Bundle.class, qo);
             
+            // Resolve descriptions for the whole page in the caller's locale
+            List<String> ids = new ArrayList<>();
+            for (Bundle role : roles) {
+                ids.add(role.getId());
+            }
+            LocalizedDescriptionResolver resolver = new LocalizedDescriptionResolver(context, locale);
+            Map<String, String> descriptions = resolver.resolve(ids);
+            
             // Convert to OwnershipResult objects
             for (Bundle role : roles) {
                 OwnershipResult result = new OwnershipResult();
                 result.setId(role.getId());
                 result.setDisplayName(role.getName());
-                result.setDescription(role.getDescription());
+                String description = descriptions.get(role.getId());
+                result.setDescription(description != null ? description : role.getDescription());
                 result.setOwnershipType(Type.ROLE);
                 
                 // Add additional role details as needed
@@ -185,22 +262,133 @@ public class EntitlementRolesResource extends BasePluginResource {
             @QueryParam("limit") @DefaultValue("25") int limit,
             @QueryParam("offset") @DefaultValue("0") int offset) throws GeneralException {
         
+        try (RequestThrottle.Permit permit = acquirePermit("owned-items")) {
+            if (getSettingBool(OwnershipSnapshot.SETTING_FALLBACK_ENABLED)) {
+                return findOwnedItemsWithSnapshotFallback(permit, searchTerm, limit, offset);
+            }
+            return findOwnedItems(getLoggedInUserName(), getLocale(), searchTerm, limit, offset);
+        }
+    }
+    
+    /**
+     * Queries the entitlements and then the roles owned by the current user
+     * @param userName Name of the current user
+     * @param locale Locale to resolve descriptions in
+     * @param searchTerm Optional search term to filter results
+     * @param limit Maximum number of results to return
+     * @param offset Pagination offset
+     * @return List of ownership results
+     * @throws GeneralException if an error occurs
+     */
+    private List<OwnershipResult> findOwnedItems(String userName, Locale locale, String searchTerm,
+            int limit, int offset) throws GeneralException {
+        
         List<OwnershipResult> results = new ArrayList<>();
         
         // Get entitlements
-        List<OwnershipResult> entitlements = getOwnedEntitlements(searchTerm, limit, offset);
+        List<OwnershipResult> entitlements = findOwnedEntitlements(userName, locale, searchTerm, limit, offset);
         results.addAll(entitlements);
         
         // If we have fewer entitlements than the limit, also get roles
         if (entitlements.size() < limit) {
             int remainingLimit = limit - entitlements.size();
-            List<OwnershipResult> roles = getOwnedRoles(searchTerm, remainingLimit, 0);
+            List<OwnershipResult> roles = findOwnedRoles(userName, locale, searchTerm, remainingLimit, 0);
             results.addAll(roles);
         }
         
         return results;
     }
     
+    /**
+     * Runs the owned items query under the deadline guard and, if it misses
+     * the deadline or fails, serves the page from the ownership snapshot
+     * instead. The snapshot page is built like the live one: entitlements in
+     * id order from the offset, then roles in id order from the start to
+     * fill the remaining limit. Items served from the snapshot carry stale
+     * and snapshotDate attributes.
+     * @param permit The request's throttle permit
+     * @param searchTerm Optional search term to filter results
+     * @param limit Maximum number of results to return
+     * @param offset Pagination offset
+     * @return List of ownership results
+     * @throws GeneralException if the live query fails and there is no snapshot
+     */
+    private List<OwnershipResult> findOwnedItemsWithSnapshotFallback(RequestThrottle.Permit permit,
+            String searchTerm, int limit, int offset) throws GeneralException {
+        
+        // Anything tied to the request is read here, since the query runs on a worker thread
+        Identity currentUser = getLoggedInUser();
+        if (currentUser == null) {
+            log.error("Current user not found: " + getLoggedInUserName());
+            return new ArrayList<>();
+        }
+        String userId = currentUser.getId();
+        String userName = currentUser.getName();
+        Locale locale = getLocale();
+        int deadline = getSettingInt(OwnershipSnapshot.SETTING_DEADLINE_MILLIS);
+        if (deadline <= 0) {
+            deadline = OwnershipSnapshot.DEFAULT_DEADLINE_MILLIS;
+        }
+        
+        GeneralException failure = null;
+        try {
+            // The queries use the thread's current context, which is the worker's own context
+            List<OwnershipResult> live = liveQueryGuard.run(userName, permit, deadline, getSettingInt(RequestThrottle.SETTING_MAX_CONCURRENT),
+                    queryContext -> findOwnedItems(userName, locale, searchTerm, limit, offset));
+            if (live != null) {
+                return live;
+            }
+        } catch (GeneralException e) {
+            log.warn("Live owned items query failed, serving the snapshot", e);
+            failure = e;
+        }
+        
+        boolean search = searchTerm != null && !searchTerm.isEmpty();
+        // Both reads use the same view, so the page never mixes two snapshots
+        OwnershipSnapshot.View view = snapshot.view();
+        if (view == null) {
+            throw new GeneralException("Live owned items query did not complete and no snapshot is available", failure);
+        }
+        OwnershipSnapshot.Page entitlements = view.read(userId, false,
+                search ? row -> OwnershipSnapshot.matches(displayableName(row), searchTerm) : null, offset, limit);
+        
+        List<OwnershipSnapshot.Row> rows = new ArrayList<>(entitlements.getRows());
+        if (rows.size() < limit) {
+            OwnershipSnapshot.Page roles = view.read(userId, true,
+                    search ? row -> OwnershipSnapshot.matches(row.getName(), searchTerm) : null, 0, limit - rows.size());
+            rows.addAll(roles.getRows());
+        }
+        
+        Date snapshotDate = new Date(view.getCreated());
+        List<OwnershipResult> results = new ArrayList<>();
+        for (OwnershipSnapshot.Row row : rows) {
+            OwnershipResult result = new OwnershipResult();
+            result.setId(row.getId());
+            if (row.isBundle()) {
+                result.setDisplayName(row.getName());
+                result.setOwnershipType(Type.ROLE);
+            } else {
+                result.setDisplayName(displayableName(row));
+                result.setApplication(row.getApplicationName());
+                result.setOwnershipType(Type.ENTITLEMENT);
+            }
+            result.addAdditionalAttribute("stale", true);
+            result.addAdditionalAttribute("snapshotDate", snapshotDate);
+            results.add(result);
+        }
+        
+        return results;
+    }
+    
+    /**
+     * Matches ManagedAttribute.getDisplayableName() for a snapshot row
+     * @param row An entitlement row
+     * @return The display name, or the value if there is none
+     */
+    private static String displayableName(OwnershipSnapshot.Row row) {
+        return row.getDisplayName() != null ? row.getDisplayName() : row.getName();
+    }
+    
     /**
      * Gets the details of a specific entitlement
      * @param entitlementId ID of the entitlement to retrieve
@@ -225,7 +413,8 @@ public class EntitlementRolesResource extends BasePluginResource {
             result.setId(entitlement.getId());
             result.setDisplayName(entitlement.getDisplayableName());
             result.setApplication(entitlement.getApplication().getName());
-            result.setDescription(entitlement.getDescription());
+            String description = resolveDescription(context, entitlement.getId());
+            result.setDescription(description != null ? description : entitlement.getDescription());
             result.setOwnershipType(Type.ENTITLEMENT);
             
             // Add additional entitlement details as needed
@@ -261,7 +450,8 @@ public class EntitlementRolesResource extends BasePluginResource {
             OwnershipResult result = new OwnershipResult();
             result.setId(role.getId());
             result.setDisplayName(role.getName());
-            result.setDescription(role.getDescription());
+            String description = resolveDescription(context, role.getId());
+            result.setDescription(description != null ? description : role.getDescription());
             result.setOwnershipType(Type.ROLE);
             
             // Add additional role details as needed
@@ -299,4 +489,53 @@ public class EntitlementRolesResource extends BasePluginResource {
                 throw new IllegalArgumentException("Unsupported ownership type: " + type);
         }
     }
+
+    /**
+     * Returns the throttle rejection counters and current load
+     * @return Map of metric name to value
+     * @throws GeneralException if an error occurs
+     */
+    @GET
+    @Path("metrics")
+    @Deferred
+    public Map<String, Object> getMetrics() throws GeneralException {
+        authorize(new CapabilityAuthorizer("SystemAdministrator"));
+        
+        Map<String, Object> metrics = new HashMap<>();
+        metrics.put("throttle", RequestThrottle.getInstance().getMetrics());
+        return metrics;
+    }
+    
+    /**
+     * @return the ownership snapshot, for the plugin service to write
+     */
+    public static OwnershipSnapshot getSnapshot() {
+        return snapshot;
+    }
+    
+    /**
+     * Admits a list request for the current user against the configured limits
+     * @param endpoint Name of the endpoint being called
+     * @return A permit to close when the request completes
+     * @throws WebApplicationException with status 429 if the request is rejected
+     */
+    private RequestThrottle.Permit acquirePermit(String endpoint) {
+        RequestThrottle.Limits limits = new RequestThrottle.Limits(
+                getSettingInt(RequestThrottle.SETTING_REQUESTS_PER_MINUTE),
+                getSettingInt(RequestThrottle.SETTING_BURST),
+                getSettingInt(RequestThrottle.SETTING_MAX_CONCURRENT));
+        return RequestThrottle.getInstance().acquire(getLoggedInUserName(), endpoint, limits);
+    }
+    
+    /**
+     * Resolves the description of a single object in the caller's locale
+     * @param context The context to query with
+     * @param id ID of the described object
+     * @return The description, or null if the localized store has none
+     * @throws GeneralException if an error occurs
+     */
+    private String resolveDescription(SailPointContext context, String id) throws GeneralException {
+        LocalizedDescriptionResolver resolver = new LocalizedDescriptionResolver(context, getLocale());
+        return resolver.resolve(Collections.singletonList(id)).get(id);
+    }
 }
\ No newline at end of file
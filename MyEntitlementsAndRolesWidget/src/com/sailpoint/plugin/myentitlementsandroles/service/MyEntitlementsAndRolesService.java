@@ -0,0 +1,54 @@
+package com.sailpoint.plugin.myentitlementsandroles.service;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import sailpoint.api.SailPointContext;
+import sailpoint.server.BasePluginService;
+import sailpoint.tools.GeneralException;
+
+import com.sailpoint.plugin.myentitlementsandroles.rest.EntitlementRolesResource;
+import com.sailpoint.plugin.myentitlementsandroles.rest.LiveQueryGuard;
+import com.sailpoint.plugin.myentitlementsandroles.rest.OwnershipSnapshot;
+
+/**
+ * Plugin service writing the ownership snapshot. IdentityIQ starts and
+ * stops it with the plugin, so this work never outlives the plugin
+ * classloader. The service definition runs it every minute on every host;
+ * the snapshot is only rewritten once its interval has passed.
+ */
+public class MyEntitlementsAndRolesService extends BasePluginService {
+
+    /**
+     * The logger to use
+     */
+    private static final Log log = LogFactory.getLog(MyEntitlementsAndRolesService.class);
+
+    @Override
+    public String getPluginName() {
+        return "MyEntitlementsandRoles";
+    }
+
+    @Override
+    public void execute(SailPointContext context) throws GeneralException {
+        if (!getSettingBool(OwnershipSnapshot.SETTING_FALLBACK_ENABLED)) {
+            return;
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Checking the ownership snapshot");
+        }
+
+        EntitlementRolesResource.getSnapshot().writeIfDue(context,
+                getSettingInt(OwnershipSnapshot.SETTING_INTERVAL_MINUTES));
+    }
+
+    /**
+     * Stop the live query workers along with the service so none outlive
+     * the plugin classloader
+     */
+    @Override
+    public void terminate() {
+        LiveQueryGuard.shutdownAll();
+        super.terminate();
+    }
+}